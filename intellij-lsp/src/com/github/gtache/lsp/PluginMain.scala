@@ -1,13 +1,14 @@
 package com.github.gtache.lsp
 
-import java.util.concurrent.{TimeUnit, TimeoutException}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicReference}
+import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit, TimeoutException}
 
 import com.github.gtache.lsp.client.languageserver.ServerStatus
 import com.github.gtache.lsp.client.languageserver.serverdefinition.LanguageServerDefinition
 import com.github.gtache.lsp.client.languageserver.wrapper.{LanguageServerWrapper, LanguageServerWrapperImpl}
 import com.github.gtache.lsp.contributors.LSPNavigationItem
 import com.github.gtache.lsp.editor.listeners.{EditorListener, FileDocumentManagerListenerImpl, VFSListener}
-import com.github.gtache.lsp.requests.{Timeout, Timeouts}
+import com.github.gtache.lsp.requests.{FileEventFilter, Timeout, Timeouts}
 import com.github.gtache.lsp.settings.LSPState
 import com.github.gtache.lsp.utils.{ApplicationUtils, FileUtils, GUIUtils}
 import com.intellij.AppTopics
@@ -25,7 +26,6 @@ import org.eclipse.lsp4j._
 
 import scala.collection.JavaConverters._
 import scala.collection.immutable.HashMap
-import scala.collection.mutable
 
 /**
   * The main class of the plugin
@@ -33,29 +33,58 @@ import scala.collection.mutable
 object PluginMain {
 
   private val LOG: Logger = Logger.getInstance(classOf[PluginMain])
-  private val extToLanguageWrapper: mutable.Map[(String, String), LanguageServerWrapper] = mutable.HashMap()
-  private val projectToLanguageWrappers: mutable.Map[String, mutable.Set[LanguageServerWrapper]] = mutable.HashMap()
-  private val forcedAssociationsInstances: mutable.Map[(String, String), LanguageServerWrapper] = mutable.HashMap()
-  private var forcedAssociations: mutable.Map[(String, String), LanguageServerDefinition] = mutable.HashMap()
-  private var extToServerDefinition: Map[String, LanguageServerDefinition] = HashMap()
-  private var loadedExtensions: Boolean = false
+  private val routing: AtomicReference[Routing] = new AtomicReference(Routing(HashMap(), HashMap(), HashMap(), HashMap(), HashMap()))
+  private val creationLock = new Object
+  private val pendingEditors: ConcurrentLinkedQueue[Editor] = new ConcurrentLinkedQueue[Editor]()
+  private val editorsFlushScheduled: AtomicBoolean = new AtomicBoolean(false)
+  @volatile private var loadedExtensions: Boolean = false
 
-  def resetAssociations(): Unit = {
-    forcedAssociationsInstances.synchronized {
-      forcedAssociationsInstances.foreach(t => t._2.disconnect(t._1._1))
-      forcedAssociationsInstances.clear()
-    }
-    forcedAssociations.synchronized {
-      forcedAssociations.clear()
-      LSPState.getInstance().setForcedAssociations(forcedAssociations.map(mapping => Array(mapping._1._1, mapping._1._2) -> mapping._2.toArray).asJava)
+  /**
+    * An immutable snapshot of the routing of files to servers. Readers use the current snapshot without locking,
+    * writers replace it atomically (see updateRouting)
+    *
+    * @param extToServerDefinition       The extension -> server definition mapping
+    * @param extToLanguageWrapper        The (extension, project uri) -> wrapper mapping
+    * @param projectToLanguageWrappers   The project uri -> wrappers mapping
+    * @param forcedAssociations          The (file uri, project uri) -> server definition forced by the user
+    * @param forcedAssociationsInstances The (file uri, project uri) -> wrapper mapping
+    */
+  private case class Routing(extToServerDefinition: Map[String, LanguageServerDefinition],
+                             extToLanguageWrapper: Map[(String, String), LanguageServerWrapper],
+                             projectToLanguageWrappers: Map[String, Set[LanguageServerWrapper]],
+                             forcedAssociations: Map[(String, String), LanguageServerDefinition],
+                             forcedAssociationsInstances: Map[(String, String), LanguageServerWrapper])
+
+  /**
+    * Atomically replaces the routing snapshot
+    *
+    * @param update The update function (may be called multiple times, must not have side effects)
+    * @return The previous snapshot
+    */
+  private def updateRouting(update: Routing => Routing): Routing = {
+    var previous = routing.get()
+    while (!routing.compareAndSet(previous, update(previous))) {
+      previous = routing.get()
     }
+    previous
+  }
+
+  private def saveForcedAssociations(): Unit = {
+    LSPState.getInstance().setForcedAssociations(routing.get().forcedAssociations.map(mapping => Array(mapping._1._1, mapping._1._2) -> mapping._2.toArray).asJava)
+  }
+
+  def resetAssociations(): Unit = {
+    val previous = updateRouting(r => r.copy(forcedAssociations = HashMap(), forcedAssociationsInstances = HashMap()))
+    previous.forcedAssociationsInstances.foreach(t => t._2.disconnect(t._1._1))
+    FileEventFilter.invalidate()
+    saveForcedAssociations()
   }
 
   /**
     * @return All instantiated ServerWrappers
     */
   def getAllServerWrappers: Set[LanguageServerWrapper] = {
-    projectToLanguageWrappers.values.flatten.toSet
+    routing.get().projectToLanguageWrappers.values.flatten.toSet
   }
 
   /**
@@ -63,7 +92,21 @@ object PluginMain {
     * @return True if there is a LanguageServer supporting this extension, false otherwise
     */
   def isExtensionSupported(ext: String): Boolean = {
-    extToServerDefinition.contains(ext)
+    routing.get().extToServerDefinition.contains(ext)
+  }
+
+  /**
+    * @return The extensions supported by a LanguageServer
+    */
+  def getSupportedExtensions: Set[String] = {
+    routing.get().extToServerDefinition.keySet
+  }
+
+  /**
+    * @return The names of the files forcefully associated to a LanguageServer
+    */
+  def getForcedAssociationsNames: Set[String] = {
+    routing.get().forcedAssociations.keys.map(k => k._1.substring(k._1.lastIndexOf(FileUtils.URI_PATH_SEP) + 1).replace(FileUtils.SPACE_ENCODED, " ")).toSet
   }
 
   /**
@@ -82,84 +125,107 @@ object PluginMain {
     */
   def setExtToServerDefinition(newExt: collection.Map[String, LanguageServerDefinition]): Unit = {
     val nullDef = newExt.filter(d => d._2 == null)
-    val oldServerDef = extToServerDefinition
     val flattened = newExt.filter(d => d._2 != null).flatMap(t => t._1.split(LanguageServerDefinition.SPLIT_CHAR).map(ext => ext -> t._2)).toMap
-    extToServerDefinition = flattened
-    flattenExt()
+    val oldServerDef = updateRouting(r => r.copy(extToServerDefinition = flattenExt(flattened))).extToServerDefinition
+    FileEventFilter.invalidate()
     nullDef.foreach(ext => LOG.error("Definition for " + ext + " is null"))
     ApplicationUtils.pool(() => {
       val added = flattened.keys.filter(e => !oldServerDef.contains(e)).toSet
       val removed = oldServerDef.keys.filter(e => !flattened.contains(e)).toSet
-      forcedAssociations.synchronized {
-        forcedAssociationsInstances.synchronized {
-          val newValues = flattened.values.toSet
-          forcedAssociations = forcedAssociations.filter(t => newValues.contains(t._2))
-          forcedAssociationsInstances.filter(t => !newValues.contains(t._2.getServerDefinition)).keys.foreach(k => {
-            forcedAssociationsInstances(k).disconnect(k._1)
-            forcedAssociationsInstances.remove(k)
-          })
-        }
-      }
-      extToLanguageWrapper.keys.filter(k => removed.contains(k._1)).foreach(k => {
-        val wrapper = extToLanguageWrapper(k)
+      val newValues = flattened.values.toSet
+      val previous = updateRouting(r => r.copy(
+        forcedAssociations = r.forcedAssociations.filter(t => newValues.contains(t._2)),
+        forcedAssociationsInstances = r.forcedAssociationsInstances.filter(t => newValues.contains(t._2.getServerDefinition))))
+      previous.forcedAssociationsInstances.filter(t => !newValues.contains(t._2.getServerDefinition)).foreach(t => t._2.disconnect(t._1._1))
+      FileEventFilter.invalidate()
+      val removedWrappers = updateRouting(r => r.copy(extToLanguageWrapper = r.extToLanguageWrapper.filter(k => !removed.contains(k._1._1))))
+        .extToLanguageWrapper.filter(k => removed.contains(k._1._1)).values.toSet
+      removedWrappers.foreach(wrapper => {
         wrapper.stop()
         wrapper.removeWidget()
-        extToLanguageWrapper.remove(k)
       })
-      val openedEditors: Iterable[Editor] = ApplicationUtils.computableReadAction(() => ProjectManager.getInstance().getOpenProjects.flatMap(proj => FileEditorManager.getInstance(proj).getAllEditors()).collect { case t: TextEditor => t.getEditor })
-      val files = openedEditors.map(e => FileDocumentManager.getInstance().getFile(e.getDocument))
-      files.zip(openedEditors).foreach(f => if (added.contains(f._1.getExtension)) editorOpened(f._2))
+      //editorsOpened reads the focused editors, which must be done on the EDT
+      ApplicationUtils.invokeLater(() => {
+        val openedEditors: Iterable[Editor] = ProjectManager.getInstance().getOpenProjects.filter(p => !p.isDisposed)
+          .flatMap(proj => FileEditorManager.getInstance(proj).getAllEditors()).collect { case t: TextEditor => t.getEditor }
+        val files = openedEditors.map(e => FileDocumentManager.getInstance().getFile(e.getDocument))
+        editorsOpened(files.zip(openedEditors).filter(f => f._1 != null && added.contains(f._1.getExtension)).map(f => f._2).toList)
+      })
     })
   }
 
   /**
     * Called when an editor is opened. Instantiates a LanguageServerWrapper if necessary, and adds the Editor to the Wrapper
+    * The editors opened during the same EDT event (e.g. when a project is reopened) are attached together, see editorsOpened
     *
     * @param editor the editor
     */
   def editorOpened(editor: Editor): Unit = {
-    addExtensions()
-    val file: VirtualFile = FileDocumentManager.getInstance.getFile(editor.getDocument)
-    if (file != null) {
-      ApplicationUtils.pool(() => {
-        val ext: String = file.getExtension
-        LOG.info("Opened " + file.getName)
-        val uri = FileUtils.editorToURIString(editor)
-        val pUri = FileUtils.editorToProjectFolderUri(editor)
-        val forced = forcedAssociationsInstances.get((uri, pUri)).orNull
-        if (forced == null) {
-          val forcedDef = forcedAssociations.get((uri, pUri)).orNull
-          if (forcedDef == null) {
-            extToServerDefinition.get(ext).foreach(s => {
-              val wrapper = getWrapperFor(ext, editor, s)
-              if (wrapper != null) {
-                LOG.info("Adding file " + file.getName)
-                wrapper.connect(editor)
-              }
-            })
-          } else {
-            val wrapper = getWrapperFor(ext, editor, forcedDef)
-            if (wrapper != null) {
-              LOG.info("Adding file " + file.getName)
-              wrapper.connect(editor)
-            }
-          }
-        } else forced.connect(editor)
+    pendingEditors.add(editor)
+    if (editorsFlushScheduled.compareAndSet(false, true)) {
+      ApplicationUtils.invokeLater(() => {
+        editorsFlushScheduled.set(false)
+        val editors = Iterator.continually(pendingEditors.poll()).takeWhile(e => e != null).toList
+        if (editors.nonEmpty) editorsOpened(editors)
       })
-    } else {
-      LOG.warn("File for editor " + editor.getDocument.getText + " is null")
     }
   }
 
+  /**
+    * Attaches editors in a batch : the editors are routed to their wrapper, the focused editors first, and each wrapper
+    * connects its editors at once (a single wait for the server initialization, then the didOpen are sent in order)
+    * Routing only reads the current snapshot, so it doesn't block other threads
+    * Must be called on the EDT (the focused editors are read from the FileEditorManager)
+    *
+    * @param editors the editors
+    */
+  def editorsOpened(editors: Seq[Editor]): Unit = {
+    addExtensions()
+    val focused = ProjectManager.getInstance().getOpenProjects
+      .filter(p => !p.isDisposed).flatMap(p => Option(FileEditorManager.getInstance(p).getSelectedTextEditor)).toSet
+    val withFiles = editors.filter(e => !e.isDisposed).map(e => (e, FileDocumentManager.getInstance.getFile(e.getDocument)))
+    withFiles.filter(e => e._2 == null).foreach(e => LOG.warn("File for editor " + e._1.getDocument.getText + " is null"))
+    val sorted = withFiles.filter(e => e._2 != null).sortBy(e => if (focused.contains(e._1)) 0 else 1)
+    ApplicationUtils.pool(() => {
+      val routed = sorted.flatMap(e => Option(route(e._1, e._2)).map(w => (w, e._1)))
+      val byWrapper = routed.map(r => r._1).distinct.map(w => (w, routed.filter(r => r._1 == w).map(r => r._2)))
+      byWrapper.foreach(w => ApplicationUtils.pool(() => {
+        LOG.info("Adding " + w._2.size + " files to " + w._1.getServerDefinition)
+        w._1.connect(w._2)
+      }))
+    })
+  }
+
+  /**
+    * Finds (or instantiates) the wrapper for an editor
+    *
+    * @param editor The editor
+    * @param file   The file of the editor
+    * @return The wrapper, or null if the file isn't supported
+    */
+  private def route(editor: Editor, file: VirtualFile): LanguageServerWrapper = {
+    val ext: String = file.getExtension
+    LOG.info("Opened " + file.getName)
+    val uri = FileUtils.editorToURIString(editor)
+    val pUri = FileUtils.editorToProjectFolderUri(editor)
+    val current = routing.get()
+    val forced = current.forcedAssociationsInstances.get((uri, pUri)).orNull
+    if (forced == null) {
+      val forcedDef = current.forcedAssociations.get((uri, pUri)).orNull
+      if (forcedDef == null) {
+        current.extToServerDefinition.get(ext).map(s => getWrapperFor(ext, editor, s)).orNull
+      } else getWrapperFor(ext, editor, forcedDef)
+    } else forced
+  }
+
   def forceEditorOpened(editor: Editor, serverDefinition: LanguageServerDefinition, project: Project): Unit = {
     addExtensions()
     val file: VirtualFile = FileDocumentManager.getInstance.getFile(editor.getDocument)
     if (file != null) {
       val uri = FileUtils.editorToURIString(editor)
       val pUri = FileUtils.projectToUri(project)
-      forcedAssociations.synchronized {
-        forcedAssociations.update((uri, pUri), serverDefinition)
-      }
+      updateRouting(r => r.copy(forcedAssociations = r.forcedAssociations.updated((uri, pUri), serverDefinition)))
+      FileEventFilter.invalidate()
       ApplicationUtils.pool(() => {
         LanguageServerWrapperImpl.forEditor(editor).foreach(l => {
           LOG.info("Disconnecting " + FileUtils.editorToURIString(editor))
@@ -168,7 +234,7 @@ object PluginMain {
         LOG.info("Opened " + file.getName)
         val wrapper = getWrapperFor(serverDefinition.ext, editor, serverDefinition)
         if (wrapper != null) {
-          LSPState.getInstance().setForcedAssociations(forcedAssociations.map(mapping => Array(mapping._1._1, mapping._1._2) -> mapping._2.toArray).asJava)
+          saveForcedAssociations()
           wrapper.connect(editor)
           LOG.info("Adding file " + file.getName)
         }
@@ -178,6 +244,10 @@ object PluginMain {
     }
   }
 
+  /**
+    * Returns the wrapper for an editor, instantiating it if needed
+    * Only the instantiation of a wrapper is serialized, finding an existing one is lock-free
+    */
   private def getWrapperFor(ext: String, editor: Editor, serverDefinition: LanguageServerDefinition): LanguageServerWrapper = {
     val project: Project = editor.getProject
     val rootVFS: VirtualFile = ProjectUtil.guessProjectDir(project)
@@ -189,50 +259,74 @@ object PluginMain {
     } else {
       val rootPath: String = FileUtils.VFSToPath(rootVFS)
       val rootUri: String = FileUtils.pathToUri(rootPath)
-      forcedAssociationsInstances.synchronized {
-        val wrapper = forcedAssociationsInstances.get((FileUtils.editorToURIString(editor), FileUtils.projectToUri(project))).orNull
-        if (wrapper == null || wrapper.getServerDefinition != serverDefinition) {
-
-          extToLanguageWrapper.synchronized {
-            var wrapper = extToLanguageWrapper.get((ext, rootUri)).orNull
-            wrapper match {
-              case null =>
-                LOG.info("Instantiating wrapper for " + ext + " : " + rootUri)
-                wrapper = new LanguageServerWrapperImpl(serverDefinition, project)
-                val exts = serverDefinition.ext.split(LanguageServerDefinition.SPLIT_CHAR)
-                exts.foreach(ext => extToLanguageWrapper.put((ext, rootUri), wrapper))
-                extToLanguageWrapper.put((serverDefinition.ext, rootUri), wrapper)
-                projectToLanguageWrappers.get(rootUri) match {
-                  case Some(set) =>
-                    set.add(wrapper)
-                  case None =>
-                    projectToLanguageWrappers.put(rootUri, mutable.Set(wrapper))
-                }
-              case _: LanguageServerWrapperImpl =>
-                LOG.info("Wrapper already existing for " + ext + " , " + rootUri)
-            }
-            forcedAssociationsInstances.synchronized {
-              forcedAssociations.foreach(t => {
-                if (t._2 == serverDefinition && t._1._2 == rootUri) {
-                  forcedAssociationsInstances.update(t._1, wrapper)
-                }
-              })
-              forcedAssociationsInstances.update((FileUtils.editorToURIString(editor), rootUri), wrapper)
-            }
-            wrapper
-          }
-        } else wrapper
+      val editorUri = FileUtils.editorToURIString(editor)
+      val forced = routing.get().forcedAssociationsInstances.get((editorUri, FileUtils.projectToUri(project))).orNull
+      if (forced == null || forced.getServerDefinition != serverDefinition) {
+        val wrapper = getOrCreateWrapper(ext, rootUri, serverDefinition, project)
+        updateRouting(r => r.copy(forcedAssociationsInstances = r.forcedAssociationsInstances ++
+          r.forcedAssociations.filter(t => t._2 == serverDefinition && t._1._2 == rootUri).keys.map(k => k -> wrapper) +
+          ((editorUri, rootUri) -> wrapper)))
+        wrapper
+      } else forced
+    }
+  }
+
+  /**
+    * Returns the wrapper of a project root for an extension, instantiating it if needed
+    *
+    * @param ext              The extension
+    * @param rootUri          The uri of the project root
+    * @param serverDefinition The definition of the server handling the extension
+    * @param project          The project
+    * @return The wrapper
+    */
+  private def getOrCreateWrapper(ext: String, rootUri: String, serverDefinition: LanguageServerDefinition, project: Project): LanguageServerWrapper = {
+    routing.get().extToLanguageWrapper.get((ext, rootUri)) match {
+      case Some(w) =>
+        LOG.info("Wrapper already existing for " + ext + " , " + rootUri)
+        w
+      case None => creationLock.synchronized {
+        routing.get().extToLanguageWrapper.get((ext, rootUri)) match {
+          case Some(w) => w
+          case None =>
+            LOG.info("Instantiating wrapper for " + ext + " : " + rootUri)
+            val w = new LanguageServerWrapperImpl(serverDefinition, project)
+            val exts = serverDefinition.ext.split(LanguageServerDefinition.SPLIT_CHAR) :+ serverDefinition.ext
+            updateRouting(r => r.copy(
+              extToLanguageWrapper = r.extToLanguageWrapper ++ exts.map(e => (e, rootUri) -> w),
+              projectToLanguageWrappers = r.projectToLanguageWrappers.updated(rootUri, r.projectToLanguageWrappers.getOrElse(rootUri, Set()) + w)))
+            w
+        }
       }
     }
   }
 
+  /**
+    * Returns the wrapper handling a file which may not be opened in an editor, instantiating it if needed
+    * The forced associations are not taken into account
+    *
+    * @param file    The file
+    * @param project The project of the file
+    * @return The wrapper, or None if no server supports the extension of the file
+    */
+  def getWrapperFor(file: VirtualFile, project: Project): Option[LanguageServerWrapperImpl] = {
+    val rootVFS = ProjectUtil.guessProjectDir(project)
+    routing.get().extToServerDefinition.get(file.getExtension) match {
+      case Some(serverDefinition) if rootVFS != null =>
+        getOrCreateWrapper(file.getExtension, FileUtils.pathToUri(FileUtils.VFSToPath(rootVFS)), serverDefinition, project) match {
+          case w: LanguageServerWrapperImpl => Some(w)
+          case _ => None
+        }
+      case _ => None
+    }
+  }
+
   /**
     * Returns the extensions->languageServer mapping
     *
     * @return The Java map
     */
   def getExtToServerDefinitionJava: java.util.Map[String, LanguageServerDefinition] = {
-    import scala.collection.JavaConverters._
     getExtToServerDefinition.asJava
   }
 
@@ -243,21 +337,26 @@ object PluginMain {
     */
   def getExtToServerDefinition: Map[String, LanguageServerDefinition] = {
     addExtensions()
-    extToServerDefinition
+    routing.get().extToServerDefinition
   }
 
   private def addExtensions(): Unit = {
     if (!loadedExtensions) {
-      val extensions = LanguageServerDefinition.getAllDefinitions.filter(s => !extToServerDefinition.contains(s.ext))
-      LOG.info("Added serverDefinitions " + extensions + " from plugins")
-      extToServerDefinition = extToServerDefinition ++ extensions.map(s => (s.ext, s))
-      flattenExt()
-      loadedExtensions = true
+      creationLock.synchronized {
+        if (!loadedExtensions) {
+          val current = routing.get().extToServerDefinition
+          val extensions = LanguageServerDefinition.getAllDefinitions.filter(s => !current.contains(s.ext))
+          LOG.info("Added serverDefinitions " + extensions + " from plugins")
+          updateRouting(r => r.copy(extToServerDefinition = flattenExt(r.extToServerDefinition ++ extensions.map(s => (s.ext, s)))))
+          FileEventFilter.invalidate()
+          loadedExtensions = true
+        }
+      }
     }
   }
 
-  private def flattenExt(): Unit = {
-    extToServerDefinition = extToServerDefinition.map(p => {
+  private def flattenExt(extToServerDefinition: Map[String, LanguageServerDefinition]): Map[String, LanguageServerDefinition] = {
+    extToServerDefinition.map(p => {
       val ext = p._1
       val sDef = p._2
       val split = ext.split(LanguageServerDefinition.SPLIT_CHAR)
@@ -292,7 +391,7 @@ object PluginMain {
     * @return An array of NavigationItem
     */
   def workspaceSymbols(name: String, pattern: String, project: Project, includeNonProjectItems: Boolean = false, onlyKind: Set[SymbolKind] = Set()): Array[NavigationItem] = {
-    projectToLanguageWrappers.get(FileUtils.pathToUri(project.getBasePath)) match {
+    routing.get().projectToLanguageWrappers.get(FileUtils.pathToUri(project.getBasePath)) match {
       case Some(set) =>
         val params: WorkspaceSymbolParams = new WorkspaceSymbolParams(name)
         val servDefToReq = set.collect {
@@ -333,7 +432,10 @@ object PluginMain {
   }
 
   def removeWrapper(wrapper: LanguageServerWrapper): Unit = {
-    extToLanguageWrapper.remove((wrapper.getServerDefinition.ext, FileUtils.pathToUri(wrapper.getProject.getBasePath)))
+    updateRouting(r => r.copy(
+      extToLanguageWrapper = r.extToLanguageWrapper.filter(t => t._2 != wrapper),
+      projectToLanguageWrappers = r.projectToLanguageWrappers.map(t => t._1 -> (t._2 - wrapper)),
+      forcedAssociationsInstances = r.forcedAssociationsInstances.filter(t => t._2 != wrapper)))
   }
 
   def setForcedAssociations(associations: java.util.Map[Array[String], Array[String]]): Unit = {
@@ -341,7 +443,9 @@ object PluginMain {
     if (!scAssociations.keys.forall(t => t.length == 2)) {
       LOG.warn("Unable to set forced associations : bad array length")
     } else {
-      this.forcedAssociations = mutable.Map() ++ scAssociations.map(mapping => (mapping._1(0), mapping._1(1)) -> LanguageServerDefinition.fromArray(mapping._2))
+      val associations = scAssociations.map(mapping => (mapping._1(0), mapping._1(1)) -> LanguageServerDefinition.fromArray(mapping._2)).toMap
+      updateRouting(r => r.copy(forcedAssociations = associations))
+      FileEventFilter.invalidate()
     }
   }
 }
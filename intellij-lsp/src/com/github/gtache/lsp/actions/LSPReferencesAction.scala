@@ -26,7 +26,7 @@ class LSPReferencesAction extends DumbAwareAction {
     val editor = e.getData(CommonDataKeys.EDITOR)
     if (editor != null) {
       val targets = EditorEventManager.forEditor(editor)
-        .map(m => m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true, close = true)._1)
+        .map(m => m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true))
         .getOrElse(Seq())
         .map(r => new PsiElement2UsageTargetAdapter(r))
 
@@ -35,7 +35,7 @@ class LSPReferencesAction extends DumbAwareAction {
   }
 
   def forManagerAndOffset(manager: EditorEventManager, offset: Int): Unit = {
-    val targets = manager.references(offset, getOriginalElement = true, close = true)._1.map(r => new PsiElement2UsageTargetAdapter(r))
+    val targets = manager.references(offset, getOriginalElement = true).map(r => new PsiElement2UsageTargetAdapter(r))
     val editor = manager.editor
     showReferences(editor, targets, editor.offsetToLogicalPosition(offset))
   }
@@ -0,0 +1,22 @@
+package com.github.gtache.lsp.actions
+
+import com.github.gtache.lsp.requests.ReformatHandler
+import com.intellij.openapi.actionSystem.{AnActionEvent, CommonDataKeys}
+import com.intellij.openapi.project.DumbAwareAction
+
+/**
+  * Action reformatting the selected files and directories using the language servers, without opening editors
+  */
+class LSPReformatFilesAction extends DumbAwareAction {
+
+  override def actionPerformed(e: AnActionEvent): Unit = {
+    val project = e.getData(CommonDataKeys.PROJECT)
+    val files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY)
+    if (project != null && files != null) ReformatHandler.reformatFilesAndDirectories(project, files.toSeq)
+  }
+
+  override def update(e: AnActionEvent): Unit = {
+    val files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY)
+    e.getPresentation.setEnabledAndVisible(e.getProject != null && files != null && files.nonEmpty)
+  }
+}
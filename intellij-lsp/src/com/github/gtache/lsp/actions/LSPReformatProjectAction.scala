@@ -0,0 +1,20 @@
+package com.github.gtache.lsp.actions
+
+import com.github.gtache.lsp.requests.ReformatHandler
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.project.DumbAwareAction
+
+/**
+  * Action reformatting all the files of the project supported by the language servers, without opening editors
+  */
+class LSPReformatProjectAction extends DumbAwareAction {
+
+  override def actionPerformed(e: AnActionEvent): Unit = {
+    val project = e.getProject
+    if (project != null) ReformatHandler.reformatAllFiles(project)
+  }
+
+  override def update(e: AnActionEvent): Unit = {
+    e.getPresentation.setEnabledAndVisible(e.getProject != null)
+  }
+}
@@ -12,6 +12,7 @@ public enum DynamicRegistrationMethods {
     SYMBOL("workspace/symbol"),
     EXECUTE_COMMAND("workspace/executeCommand"),
     SYNCHRONIZATION("textDocument/synchronization"),
+    DID_CHANGE("textDocument/didChange"),
     COMPLETION("textDocument/completion"),
     HOVER("textDocument/hover"),
     SIGNATURE_HELP("textDocument/signatureHelp"),
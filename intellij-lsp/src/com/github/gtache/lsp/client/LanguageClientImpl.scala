@@ -36,9 +36,7 @@ class LanguageClientImpl extends LanguageClient {
   }
 
   override def applyEdit(params: ApplyWorkspaceEditParams): CompletableFuture[ApplyWorkspaceEditResponse] = {
-    CompletableFuture.supplyAsync(() => {
-      new ApplyWorkspaceEditResponse(WorkspaceEditHandler.applyEdit(params.getEdit))
-    })
+    WorkspaceEditHandler.applyServerEdit(params.getEdit)
   }
 
   override def configuration(configurationParams: ConfigurationParams): CompletableFuture[util.List[AnyRef]] = super.configuration(configurationParams)
@@ -108,5 +106,11 @@ class LanguageClientImpl extends LanguageClient {
     }
   }
 
-  override def semanticHighlighting(params: SemanticHighlightingParams): Unit = super.semanticHighlighting(params)
+  override def semanticHighlighting(params: SemanticHighlightingParams): Unit = {
+    val textDocument = params.getTextDocument
+    if (textDocument != null && params.getLines != null) {
+      val uri = FileUtils.sanitizeURI(textDocument.getUri)
+      EditorEventManager.forUri(uri).foreach(e => e.semanticHighlighting(textDocument.getVersion, params.getLines.asScala))
+    }
+  }
 }
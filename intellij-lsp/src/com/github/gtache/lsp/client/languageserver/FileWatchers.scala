@@ -0,0 +1,121 @@
+package com.github.gtache.lsp.client.languageserver
+
+import java.io.File
+import java.net.URI
+import java.nio.file.{FileSystems, Path, PathMatcher}
+
+import com.google.gson.{Gson, JsonElement}
+import com.intellij.openapi.diagnostic.Logger
+import org.eclipse.lsp4j.{DidChangeWatchedFilesRegistrationOptions, FileChangeType, WatchKind}
+
+/**
+  * Compiled FileSystemWatchers registered by a server for workspace/didChangeWatchedFiles
+  */
+object FileWatchers {
+
+  private val LOG: Logger = Logger.getInstance(FileWatchers.getClass)
+  private val gson: Gson = new Gson
+  private val ALL_KINDS: Int = WatchKind.Create + WatchKind.Change + WatchKind.Delete
+  private val GLOB_CHARS: Set[Char] = Set('*', '?', '[', ']', '{', '}', ',', '!')
+
+  /**
+    * A watcher whose glob pattern is compiled
+    *
+    * @param pattern The glob pattern
+    * @param matcher The matcher for the glob
+    * @param kind    The WatchKind bitmask
+    */
+  case class CompiledWatcher(pattern: String, matcher: PathMatcher, kind: Int) {
+
+    /**
+      * @param path     The absolute path of the file
+      * @param relative The path relative to the project root, or null
+      * @param typ      The type of change
+      * @return Whether this watcher watches the change
+      */
+    def matches(path: Path, relative: Path, typ: FileChangeType): Boolean = {
+      (kind & toWatchKind(typ)) != 0 && (matcher.matches(path) || (relative != null && matcher.matches(relative)))
+    }
+  }
+
+  /**
+    * Compiles the watchers contained in the register options of a didChangeWatchedFiles registration
+    *
+    * @param registerOptions The options (usually a JsonElement as sent by the server)
+    * @return The compiled watchers
+    */
+  def compile(registerOptions: Any): Seq[CompiledWatcher] = {
+    import scala.collection.JavaConverters._
+    val options = registerOptions match {
+      case o: DidChangeWatchedFilesRegistrationOptions => o
+      case json: JsonElement => gson.fromJson(json, classOf[DidChangeWatchedFilesRegistrationOptions])
+      case _ => null
+    }
+    if (options != null && options.getWatchers != null) {
+      options.getWatchers.asScala.flatMap(w => {
+        try {
+          val kind = if (w.getKind != null) w.getKind.intValue() else ALL_KINDS
+          Some(CompiledWatcher(w.getGlobPattern, FileSystems.getDefault.getPathMatcher("glob:" + w.getGlobPattern), kind))
+        } catch {
+          case e: Exception =>
+            LOG.warn("Invalid glob pattern " + w.getGlobPattern, e)
+            None
+        }
+      }).toList
+    } else Seq.empty
+  }
+
+  /**
+    * Returns whether any of the watchers watches a change
+    *
+    * @param watchers The watchers
+    * @param uri      The uri of the file
+    * @param rootPath The root path of the project (may be null)
+    * @param typ      The type of change
+    * @return True if the change is watched
+    */
+  def matches(watchers: Iterable[CompiledWatcher], uri: String, rootPath: String, typ: FileChangeType): Boolean = {
+    try {
+      val path = new File(new URI(uri)).toPath
+      val root = if (rootPath != null) new File(rootPath).toPath else null
+      val relative = if (root != null && path.startsWith(root)) root.relativize(path) else null
+      watchers.exists(w => w.matches(path, relative, typ))
+    } catch {
+      case e: Exception =>
+        LOG.warn("Couldn't match uri " + uri, e)
+        false
+    }
+  }
+
+  /**
+    * Approximates a glob pattern by the files it may match, looking only at its last segment
+    * e.g. a pattern ending with *.{ts,js} gives the extensions ts and js, one ending with package.json gives the name package.json
+    *
+    * @param pattern The glob pattern
+    * @return The (extensions, names) which may match, or None if the pattern may match any file
+    */
+  def approximate(pattern: String): Option[(Set[String], Set[String])] = {
+    def isLiteral(str: String): Boolean = str.nonEmpty && !str.exists(c => GLOB_CHARS.contains(c))
+
+    val last = pattern.substring(pattern.lastIndexOf('/') + 1)
+    if (isLiteral(last)) {
+      Some((Set.empty, Set(last)))
+    } else if (last.startsWith("*.")) {
+      val ext = last.drop(2)
+      if (ext.startsWith("{") && ext.endsWith("}")) {
+        val exts = ext.drop(1).dropRight(1).split(',').map(e => e.substring(e.lastIndexOf('.') + 1)).toSet
+        if (exts.forall(isLiteral)) Some((exts, Set.empty)) else None
+      } else {
+        val lastExt = ext.substring(ext.lastIndexOf('.') + 1)
+        if (isLiteral(lastExt)) Some((Set(lastExt), Set.empty)) else None
+      }
+    } else None
+  }
+
+  private def toWatchKind(typ: FileChangeType): Int = typ match {
+    case FileChangeType.Created => WatchKind.Create
+    case FileChangeType.Changed => WatchKind.Change
+    case FileChangeType.Deleted => WatchKind.Delete
+    case _ => 0
+  }
+}
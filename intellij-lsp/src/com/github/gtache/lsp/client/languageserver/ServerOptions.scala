@@ -12,7 +12,10 @@ import org.eclipse.lsp4j._
   * @param documentOnTypeFormattingOptions The onTypeFormatting options
   * @param documentLinkOptions             The link options
   * @param executeCommandOptions           The execute options
+  * @param semanticHighlightingOptions     The semantic highlighting options
+  * @param foldingRangeProvider            Whether the server provides folding ranges
+  * @param documentSymbolProvider          Whether the server provides document symbols
   */
-case class ServerOptions(syncKind: TextDocumentSyncKind, completionOptions: CompletionOptions, signatureHelpOptions: SignatureHelpOptions, codeLensOptions: CodeLensOptions, documentOnTypeFormattingOptions: DocumentOnTypeFormattingOptions, documentLinkOptions: DocumentLinkOptions, executeCommandOptions: ExecuteCommandOptions, semanticHighlightingOptions: SemanticHighlightingServerCapabilities) {
+case class ServerOptions(syncKind: TextDocumentSyncKind, completionOptions: CompletionOptions, signatureHelpOptions: SignatureHelpOptions, codeLensOptions: CodeLensOptions, documentOnTypeFormattingOptions: DocumentOnTypeFormattingOptions, documentLinkOptions: DocumentLinkOptions, executeCommandOptions: ExecuteCommandOptions, semanticHighlightingOptions: SemanticHighlightingServerCapabilities, foldingRangeProvider: Boolean, documentSymbolProvider: Boolean) {
 
 }
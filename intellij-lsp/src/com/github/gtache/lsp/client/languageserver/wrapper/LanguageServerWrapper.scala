@@ -3,6 +3,7 @@ package com.github.gtache.lsp.client.languageserver.wrapper
 import java.io.IOException
 import java.util.concurrent.CompletableFuture
 
+import com.github.gtache.lsp.client.languageserver.FileWatchers.CompiledWatcher
 import com.github.gtache.lsp.client.languageserver.ServerStatus
 import com.github.gtache.lsp.client.languageserver.requestmanager.RequestManager
 import com.github.gtache.lsp.client.languageserver.serverdefinition.LanguageServerDefinition
@@ -12,7 +13,7 @@ import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.project.Project
 import org.eclipse.lsp4j.jsonrpc.messages.Message
 import org.eclipse.lsp4j.services.LanguageServer
-import org.eclipse.lsp4j.{RegistrationParams, ServerCapabilities, UnregistrationParams}
+import org.eclipse.lsp4j.{FileChangeType, RegistrationParams, ServerCapabilities, UnregistrationParams}
 import org.jetbrains.annotations.Nullable
 
 /**
@@ -66,6 +67,20 @@ trait LanguageServerWrapper {
     */
   def unregisterCapability(params: UnregistrationParams): CompletableFuture[Void]
 
+  /**
+    * Returns whether the server watches a file, according to the FileSystemWatchers it registered
+    *
+    * @param uri The uri of the file
+    * @param typ The type of change
+    * @return True if the server must be notified of the change
+    */
+  def isWatched(uri: String, typ: FileChangeType): Boolean
+
+  /**
+    * @return The FileSystemWatchers registered by the server
+    */
+  def getFileWatchers: Iterable[CompiledWatcher]
+
   /**
     * Returns the EditorEventManager for a given uri
     *
@@ -97,6 +112,14 @@ trait LanguageServerWrapper {
   @throws[IOException]
   def connect(editor: Editor): Unit
 
+  /**
+    * Connects multiple editors to the languageServer, waiting for its initialization only once
+    *
+    * @param editors the editors, the most important first
+    */
+  @throws[IOException]
+  def connect(editors: Seq[Editor]): Unit
+
   /**
     * Disconnects an editor from the LanguageServer
     *
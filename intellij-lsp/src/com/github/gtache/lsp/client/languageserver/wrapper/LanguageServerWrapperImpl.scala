@@ -4,18 +4,21 @@ package com.github.gtache.lsp.client.languageserver.wrapper
 import java.io._
 import java.net.URI
 import java.util.concurrent._
+import java.util
 import java.util.{Date, Scanner}
 
 import com.github.gtache.lsp.PluginMain
 import com.github.gtache.lsp.client.languageserver.requestmanager.{RequestManager, SimpleRequestManager}
 import com.github.gtache.lsp.client.languageserver.serverdefinition.LanguageServerDefinition
-import com.github.gtache.lsp.client.languageserver.{LSPServerStatusWidget, ServerOptions, ServerStatus}
+import com.github.gtache.lsp.client.languageserver.FileWatchers.CompiledWatcher
+import com.github.gtache.lsp.client.languageserver.{FileWatchers, LSPServerStatusWidget, ServerOptions, ServerStatus}
 import com.github.gtache.lsp.client.{DynamicRegistrationMethods, LanguageClientImpl}
 import com.github.gtache.lsp.editor.EditorEventManager
 import com.github.gtache.lsp.editor.listeners.{DocumentListenerImpl, EditorMouseListenerImpl, EditorMouseMotionListenerImpl, SelectionListenerImpl}
-import com.github.gtache.lsp.requests.{Timeout, Timeouts}
+import com.github.gtache.lsp.requests.{FileEventFilter, Timeout, Timeouts}
 import com.github.gtache.lsp.settings.LSPState
-import com.github.gtache.lsp.utils.{ApplicationUtils, FileUtils, LSPException}
+import com.github.gtache.lsp.utils.{ApplicationUtils, FileUtils, LSPException, LSPExecutors}
+import com.google.gson.JsonObject
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.fileEditor.{FileEditorManager, TextEditor}
@@ -32,6 +35,7 @@ import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
 
 object LanguageServerWrapperImpl {
+  private val MAX_OPEN_DOCUMENTS = 50 //Maximum number of documents open on a server at the same time
   private val uriToLanguageServerWrapper: mutable.Map[(String, String), LanguageServerWrapper] = TrieMap()
 
   /**
@@ -68,6 +72,13 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
   private val LOG: Logger = Logger.getInstance(classOf[LanguageServerWrapperImpl])
   private val statusWidget: LSPServerStatusWidget = LSPServerStatusWidget.createWidgetFor(this)
   private val registrations: mutable.Map[String, DynamicRegistrationMethods] = mutable.HashMap()
+  private val fileWatchers: TrieMap[String, Seq[CompiledWatcher]] = TrieMap()
+  @volatile private var dynamicSyncKind: TextDocumentSyncKind = _
+  private val executorLock = new Object
+  @volatile private var executor: ThreadPoolExecutor = _
+  private val openedDocuments: util.LinkedHashMap[EditorEventManager, java.lang.Boolean] = new util.LinkedHashMap(16, 0.75f, true)
+  //Uris of the documents opened on the server without an editor (e.g. to format them), guarded by connectedEditors
+  private val transientDocuments: mutable.Set[String] = mutable.HashSet()
   private var crashCount = 0
   @volatile private var alreadyShownTimeout = false
   @volatile private var alreadyShownCrash = false
@@ -163,63 +174,97 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
   override def connect(editor: Editor): Unit = {
     if (editor == null) {
       LOG.warn("editor is null for " + serverDefinition)
-    } else {
-      val uri = FileUtils.editorToURIString(editor)
-      uriToLanguageServerWrapper.synchronized {
-        uriToLanguageServerWrapper.put((uri, FileUtils.editorToProjectFolderUri(editor)), this)
-      }
-      if (!this.connectedEditors.contains(uri)) {
-        start()
-        if (this.initializeFuture != null) {
-          val capabilities = getServerCapabilities
-          if (capabilities != null) {
-            initializeFuture.thenRun(() => {
-              if (!this.connectedEditors.contains(uri)) {
-                try {
-                  val syncOptions: Either[TextDocumentSyncKind, TextDocumentSyncOptions] = if (capabilities == null) null else capabilities.getTextDocumentSync
-                  var syncKind: TextDocumentSyncKind = null
-                  if (syncOptions != null) {
-                    if (syncOptions.isRight) syncKind = syncOptions.getRight.getChange
-                    else if (syncOptions.isLeft) syncKind = syncOptions.getLeft
-                    val mouseListener = new EditorMouseListenerImpl
-                    val mouseMotionListener = new EditorMouseMotionListenerImpl
-                    val documentListener = new DocumentListenerImpl
-                    val selectionListener = new SelectionListenerImpl
-                    val serverOptions = ServerOptions(syncKind, capabilities.getCompletionProvider, capabilities.getSignatureHelpProvider,
-                      capabilities.getCodeLensProvider, capabilities.getDocumentOnTypeFormattingProvider, capabilities.getDocumentLinkProvider,
-                      capabilities.getExecuteCommandProvider, capabilities.getSemanticHighlighting)
-                    val manager = new EditorEventManager(editor, mouseListener, mouseMotionListener, documentListener, selectionListener, requestManager, serverOptions, this)
-                    mouseListener.setManager(manager)
-                    mouseMotionListener.setManager(manager)
-                    documentListener.setManager(manager)
-                    selectionListener.setManager(manager)
-                    manager.registerListeners()
-                    this.connectedEditors.synchronized {
-                      this.connectedEditors.put(uri, manager)
-                    }
-                    manager.documentOpened()
-                    LOG.info("Created a manager for " + uri)
-                    toConnect.remove(editor)
-                    toConnect.foreach(e => connect(e))
-                  }
-                } catch {
-                  case e: Exception => LOG.error(e)
-                }
-              }
+    } else connect(Seq(editor))
+  }
 
+  /**
+    * Connects multiple editors to the languageServer
+    * The server is started and its capabilities are awaited only once, then the managers are created and the documents
+    * are opened in the given order from a single thread
+    *
+    * @param editors the editors, the most important first
+    */
+  @throws[IOException]
+  override def connect(editors: Seq[Editor]): Unit = {
+    val toAdd = editors.filter(e => e != null).map(e => (FileUtils.editorToURIString(e), e)).filter(e => !this.connectedEditors.contains(e._1))
+    toAdd.foreach(e => uriToLanguageServerWrapper.put((e._1, FileUtils.editorToProjectFolderUri(e._2)), this))
+    if (toAdd.nonEmpty) {
+      start()
+      if (this.initializeFuture != null) {
+        val capabilities = getServerCapabilities
+        if (capabilities != null) {
+          initializeFuture.thenRun(() => {
+            val managers = toAdd.flatMap(e => createManager(e._1, e._2, capabilities))
+            //Documents of background tabs are opened lazily, when shown or needed by a request
+            ApplicationUtils.invokeLater(() => {
+              val visible = managers.filter(m => m.updateVisibility())
+              pool(() => visible.foreach(m => m.openDocument()))
             })
-          } else {
-            LOG.warn("Capabilities are null for " + serverDefinition)
-          }
+            val pending = toConnect.synchronized {
+              val res = toConnect.toList.filter(e => !toAdd.exists(a => a._2 == e))
+              toConnect.clear()
+              res
+            }
+            if (pending.nonEmpty) connect(pending)
+          })
         } else {
-          toConnect.synchronized {
-            toConnect.add(editor)
-          }
+          LOG.warn("Capabilities are null for " + serverDefinition)
+        }
+      } else {
+        toConnect.synchronized {
+          toConnect ++= toAdd.map(e => e._2)
         }
       }
     }
   }
 
+  /**
+    * Creates the EditorEventManager of an editor and registers its listeners (the document is not opened)
+    *
+    * @param uri          The uri of the editor
+    * @param editor       The editor
+    * @param capabilities The server capabilities
+    * @return The manager, or None if the editor is already connected or the server doesn't support synchronization
+    */
+  private def createManager(uri: String, editor: Editor, capabilities: ServerCapabilities): Option[EditorEventManager] = {
+    if (!this.connectedEditors.contains(uri)) {
+      try {
+        val syncOptions: Either[TextDocumentSyncKind, TextDocumentSyncOptions] = capabilities.getTextDocumentSync
+        var syncKind: TextDocumentSyncKind = null
+        if (syncOptions != null) {
+          if (syncOptions.isRight) syncKind = syncOptions.getRight.getChange
+          else if (syncOptions.isLeft) syncKind = syncOptions.getLeft
+          val mouseListener = new EditorMouseListenerImpl
+          val mouseMotionListener = new EditorMouseMotionListenerImpl
+          val documentListener = new DocumentListenerImpl
+          val selectionListener = new SelectionListenerImpl
+          val foldingRangeProvider = capabilities.getFoldingRangeProvider
+          val serverOptions = ServerOptions(syncKind, capabilities.getCompletionProvider, capabilities.getSignatureHelpProvider,
+            capabilities.getCodeLensProvider, capabilities.getDocumentOnTypeFormattingProvider, capabilities.getDocumentLinkProvider,
+            capabilities.getExecuteCommandProvider, capabilities.getSemanticHighlighting,
+            foldingRangeProvider != null && (foldingRangeProvider.isRight || foldingRangeProvider.getLeft.booleanValue()),
+            capabilities.getDocumentSymbolProvider != null && capabilities.getDocumentSymbolProvider.booleanValue())
+          val manager = new EditorEventManager(editor, mouseListener, mouseMotionListener, documentListener, selectionListener, requestManager, serverOptions, this)
+          mouseListener.setManager(manager)
+          mouseMotionListener.setManager(manager)
+          documentListener.setManager(manager)
+          selectionListener.setManager(manager)
+          manager.registerListeners()
+          this.connectedEditors.synchronized {
+            this.connectedEditors.put(uri, manager)
+          }
+          if (dynamicSyncKind != null) manager.setSyncKind(dynamicSyncKind)
+          LOG.info("Created a manager for " + uri)
+          Some(manager)
+        } else None
+      } catch {
+        case e: Exception =>
+          LOG.error(e)
+          None
+      }
+    } else None
+  }
+
   /**
     * Disconnects an editor from the LanguageServer
     *
@@ -261,6 +306,17 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
     }
     if (this.serverDefinition != null) this.serverDefinition.stop(rootPath)
     connectedEditors.foreach(e => disconnect(e._1))
+    EditorEventManager.removeManagers(this)
+    openedDocuments.synchronized {
+      openedDocuments.clear()
+    }
+    connectedEditors.synchronized {
+      transientDocuments.clear()
+    }
+    executorLock.synchronized {
+      if (executor != null) LSPExecutors.shutdown(executor)
+      executor = null
+    }
     this.languageServer = null
     setStatus(STOPPED)
     stopLoggingServerErrors()
@@ -280,6 +336,15 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
     this.languageServer
   }
 
+  /**
+    * Starts the server if needed and waits for its initialization (up to the initialization timeout)
+    *
+    * @return true if the server is started, false if it failed to start, timed out or crashed
+    */
+  def ensureStarted(): Boolean = {
+    getServerCapabilities != null && status == STARTED && requestManager != null
+  }
+
   /**
     * Starts the LanguageServer
     */
@@ -308,23 +373,27 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
         //workspaceClientCapabilities.setDidChangeConfiguration(new DidChangeConfigurationCapabilities)
         workspaceClientCapabilities.setDidChangeWatchedFiles(new DidChangeWatchedFilesCapabilities)
         workspaceClientCapabilities.setExecuteCommand(new ExecuteCommandCapabilities)
+        import scala.collection.JavaConverters._
         val wec = new WorkspaceEditCapabilities
-        //TODO set failureHandling and resourceOperations
         wec.setDocumentChanges(true)
+        wec.setResourceOperations(List(ResourceOperationKind.Create, ResourceOperationKind.Rename, ResourceOperationKind.Delete).asJava)
+        wec.setFailureHandling(FailureHandlingKind.Abort)
         workspaceClientCapabilities.setWorkspaceEdit(wec)
         workspaceClientCapabilities.setSymbol(new SymbolCapabilities)
         workspaceClientCapabilities.setWorkspaceFolders(false)
         workspaceClientCapabilities.setConfiguration(false)
         val textDocumentClientCapabilities = new TextDocumentClientCapabilities
         textDocumentClientCapabilities.setCodeAction(new CodeActionCapabilities)
-        //textDocumentClientCapabilities.setCodeLens(new CodeLensCapabilities)
+        textDocumentClientCapabilities.setCodeLens(new CodeLensCapabilities)
         //textDocumentClientCapabilities.setColorProvider(new ColorProviderCapabilities)
         textDocumentClientCapabilities.setCompletion(new CompletionCapabilities(new CompletionItemCapabilities(false)))
         textDocumentClientCapabilities.setDefinition(new DefinitionCapabilities)
         textDocumentClientCapabilities.setDocumentHighlight(new DocumentHighlightCapabilities)
-        //textDocumentClientCapabilities.setDocumentLink(new DocumentLinkCapabilities)
-        //textDocumentClientCapabilities.setDocumentSymbol(new DocumentSymbolCapabilities)
-        //textDocumentClientCapabilities.setFoldingRange(new FoldingRangeCapabilities)
+        textDocumentClientCapabilities.setDocumentLink(new DocumentLinkCapabilities)
+        val documentSymbolCapabilities = new DocumentSymbolCapabilities
+        documentSymbolCapabilities.setHierarchicalDocumentSymbolSupport(true)
+        textDocumentClientCapabilities.setDocumentSymbol(documentSymbolCapabilities)
+        textDocumentClientCapabilities.setFoldingRange(new FoldingRangeCapabilities)
         textDocumentClientCapabilities.setFormatting(new FormattingCapabilities)
         textDocumentClientCapabilities.setHover(new HoverCapabilities)
         //textDocumentClientCapabilities.setImplementation(new ImplementationCapabilities)
@@ -332,9 +401,11 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
         textDocumentClientCapabilities.setRangeFormatting(new RangeFormattingCapabilities)
         textDocumentClientCapabilities.setReferences(new ReferencesCapabilities)
         textDocumentClientCapabilities.setRename(new RenameCapabilities)
-        textDocumentClientCapabilities.setSemanticHighlightingCapabilities(new SemanticHighlightingCapabilities(false))
+        textDocumentClientCapabilities.setSemanticHighlightingCapabilities(new SemanticHighlightingCapabilities(true))
         textDocumentClientCapabilities.setSignatureHelp(new SignatureHelpCapabilities)
-        textDocumentClientCapabilities.setSynchronization(new SynchronizationCapabilities(true, true, true))
+        val synchronizationCapabilities = new SynchronizationCapabilities(true, true, true)
+        synchronizationCapabilities.setDynamicRegistration(true)
+        textDocumentClientCapabilities.setSynchronization(synchronizationCapabilities)
         //textDocumentClientCapabilities.setTypeDefinition(new TypeDefinitionCapabilities)
         initParams.setCapabilities(new ClientCapabilities(workspaceClientCapabilities, textDocumentClientCapabilities, null))
         initParams.setInitializationOptions(this.serverDefinition.getInitializationOptions(URI.create(initParams.getRootUri)))
@@ -381,11 +452,36 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
         if(method.isPresent) {
           val options = r.getRegisterOptions
           registrations.put(id, method.get())
+          if (method.get() == DynamicRegistrationMethods.DID_CHANGE_WATCHED_FILES) {
+            fileWatchers.put(id, FileWatchers.compile(options))
+            FileEventFilter.invalidate()
+          }
+          if (method.get() == DynamicRegistrationMethods.DID_CHANGE) {
+            val kind = toSyncKind(options)
+            if (kind != null) {
+              dynamicSyncKind = kind
+              connectedEditors.synchronized(connectedEditors.values.toList).foreach(m => m.setSyncKind(kind))
+            }
+          }
         }
       })
     })
   }
 
+  /**
+    * Returns the synchronization kind of a textDocument/didChange registration
+    *
+    * @param registerOptions The options (usually a JsonElement as sent by the server)
+    * @return The kind, or null
+    */
+  private def toSyncKind(registerOptions: Any): TextDocumentSyncKind = {
+    registerOptions match {
+      case o: TextDocumentChangeRegistrationOptions => o.getSyncKind
+      case json: JsonObject if json.has("syncKind") => TextDocumentSyncKind.forValue(json.get("syncKind").getAsInt)
+      case _ => null
+    }
+  }
+
   override def unregisterCapability(params: UnregistrationParams): CompletableFuture[Void] = {
     CompletableFuture.runAsync(() => {
       import scala.collection.JavaConverters._
@@ -393,11 +489,17 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
         val id = r.getId
         val method = DynamicRegistrationMethods.forName(r.getMethod)
         if(method.isPresent) {
+          if (method.get() == DynamicRegistrationMethods.DID_CHANGE && dynamicSyncKind != null) {
+            dynamicSyncKind = null
+            connectedEditors.synchronized(connectedEditors.values.toList).foreach(m => m.setSyncKind(m.serverOptions.syncKind))
+          }
           if (registrations.contains(id)) {
             registrations.remove(id)
+            fileWatchers.remove(id).foreach(_ => FileEventFilter.invalidate())
           } else {
             val invert = registrations.map(mapping => (mapping._2, mapping._1))
             if (invert.contains(method.get())) {
+              fileWatchers.remove(invert(method.get())).foreach(_ => FileEventFilter.invalidate())
               registrations.remove(invert(method.get()))
             }
           }
@@ -406,6 +508,111 @@ class LanguageServerWrapperImpl(val serverDefinition: LanguageServerDefinition,
     })
   }
 
+  override def isWatched(uri: String, typ: FileChangeType): Boolean = {
+    if (fileWatchers.isEmpty) {
+      //Servers which never registered watchers receive the events of the files they handle
+      val name = uri.substring(uri.lastIndexOf(FileUtils.URI_PATH_SEP) + 1)
+      val ext = name.substring(name.lastIndexOf('.') + 1)
+      serverDefinition.getMappedExtensions.exists(e => e.split(LanguageServerDefinition.SPLIT_CHAR).contains(ext))
+    } else FileWatchers.matches(fileWatchers.values.flatten, uri, rootPath, typ)
+  }
+
+  override def getFileWatchers: Iterable[CompiledWatcher] = fileWatchers.values.flatten
+
+  /**
+    * Runs work for this server (usually requests waiting for their response) on the executor of the server
+    *
+    * @param runnable The work
+    */
+  def pool(runnable: Runnable): Unit = {
+    val current = executor
+    if (current != null) current.execute(runnable) else {
+      executorLock.synchronized {
+        if (executor == null) executor = LSPExecutors.newServerExecutor("LSP " + serverDefinition.ext + " (" + project.getName + ")")
+        executor
+      }.execute(runnable)
+    }
+  }
+
+  /**
+    * Records that a document is open on the server and was just used, closing the least recently used documents
+    * which aren't visible if more than MAX_OPEN_DOCUMENTS are open
+    * May be called on the EDT during a document change : only the documents to close are computed here, they are
+    * closed on the executor of the server
+    *
+    * @param manager The manager of the document
+    */
+  def documentUsed(manager: EditorEventManager): Unit = {
+    import scala.collection.JavaConverters._
+    val toClose = openedDocuments.synchronized {
+      openedDocuments.put(manager, true)
+      val excess = openedDocuments.size() - MAX_OPEN_DOCUMENTS
+      if (excess > 0) {
+        openedDocuments.keySet().iterator().asScala.filter(m => m != manager && !m.isVisible).take(excess).toList
+      } else Nil
+    }
+    if (toClose.nonEmpty) pool(() => toClose.foreach(m => {
+      LOG.info("Closing cold document " + m.editor.getDocument)
+      m.closeDocument()
+    }))
+  }
+
+  /**
+    * Opens a document on the server for a few requests, without an editor
+    * The document is not opened if an editor is connected to it : its EditorEventManager must be used instead
+    *
+    * @param uri  The uri of the document
+    * @param text The text of the document
+    * @return true if the document was opened, false otherwise
+    */
+  def openTransientDocument(uri: String, text: String): Boolean = {
+    connectedEditors.synchronized {
+      val manager = requestManager
+      if (manager == null || connectedEditors.contains(uri) || transientDocuments.contains(uri)) false else {
+        manager.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(uri, serverDefinition.id, 0, text)))
+        transientDocuments += uri
+        true
+      }
+    }
+  }
+
+  /**
+    * Closes a document opened by openTransientDocument, unless an EditorEventManager took it over meanwhile
+    *
+    * @param uri The uri of the document
+    */
+  def closeTransientDocument(uri: String): Unit = {
+    connectedEditors.synchronized {
+      if (transientDocuments.remove(uri) && requestManager != null) {
+        requestManager.didClose(new DidCloseTextDocumentParams(new TextDocumentIdentifier(uri)))
+      }
+    }
+  }
+
+  /**
+    * Called by an EditorEventManager about to open its document : if the document is currently opened without an
+    * editor, the manager takes it over (it must synchronize its text instead of opening it)
+    *
+    * @param uri The uri of the document
+    * @return true if the document is already open on the server
+    */
+  def takeOverTransientDocument(uri: String): Boolean = {
+    connectedEditors.synchronized {
+      transientDocuments.remove(uri)
+    }
+  }
+
+  /**
+    * Records that a document was closed on the server
+    *
+    * @param manager The manager of the document
+    */
+  def documentForgotten(manager: EditorEventManager): Unit = {
+    openedDocuments.synchronized {
+      openedDocuments.remove(manager)
+    }
+  }
+
   override def getProject: Project = project
 
   override def getStatus: ServerStatus = status
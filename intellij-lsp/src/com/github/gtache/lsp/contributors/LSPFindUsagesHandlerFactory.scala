@@ -20,13 +20,13 @@ class LSPFindUsagesHandlerFactory extends FindUsagesHandlerFactory {
         case p: PsiFile =>
           val editor = FileUtils.editorFromPsiFile(p)
           EditorEventManager.forEditor(editor) match {
-            case Some(m) => ApplicationUtils.invokeLater(() => elements = m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true)._1)
+            case Some(m) => ApplicationUtils.invokeLater(() => elements = m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true))
             case None =>
           }
         case l: LSPPsiElement =>
           val editor = FileUtils.editorFromPsiFile(l.getContainingFile)
           EditorEventManager.forEditor(editor) match {
-            case Some(m) => ApplicationUtils.invokeLater(() => elements = m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true)._1)
+            case Some(m) => ApplicationUtils.invokeLater(() => elements = m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true))
             case None =>
           }
         case _ =>
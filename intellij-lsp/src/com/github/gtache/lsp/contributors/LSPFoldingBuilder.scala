@@ -0,0 +1,32 @@
+package com.github.gtache.lsp.contributors
+
+import com.github.gtache.lsp.editor.EditorEventManager
+import com.github.gtache.lsp.utils.FileUtils
+import com.intellij.lang.ASTNode
+import com.intellij.lang.folding.{FoldingBuilderEx, FoldingDescriptor}
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.project.DumbAware
+import com.intellij.psi.PsiElement
+
+/**
+  * A folding builder using the folding ranges sent by the servers
+  * The ranges are requested asynchronously by the EditorEventManager, this builder only returns the last ones received
+  */
+class LSPFoldingBuilder extends FoldingBuilderEx with DumbAware {
+
+  override def buildFoldRegions(root: PsiElement, document: Document, quick: Boolean): Array[FoldingDescriptor] = {
+    val file = FileDocumentManager.getInstance().getFile(document)
+    val uri = if (file != null) FileUtils.VFSToURI(file) else null
+    val node = root.getNode
+    if (uri == null || node == null) Array() else {
+      EditorEventManager.forUri(uri).fold(Array[FoldingDescriptor]())(m => m.foldingRegions
+        .filter(r => r._1.getEndOffset <= document.getTextLength)
+        .map(r => new FoldingDescriptor(node, r._1, null, r._2)).toArray)
+    }
+  }
+
+  override def getPlaceholderText(node: ASTNode): String = "..."
+
+  override def isCollapsedByDefault(node: ASTNode): Boolean = false
+}
@@ -10,8 +10,9 @@ import org.eclipse.lsp4j.SymbolKind
   */
 class LSPGotoClassContributor extends LSPGotoContributor {
   override def getItemsByName(name: String, pattern: String, project: Project, includeNonProjectItems: Boolean): Array[NavigationItem] = {
-    val res = PluginMain.workspaceSymbols(name, pattern, project, includeNonProjectItems, Set(SymbolKind.Class, SymbolKind.Enum, SymbolKind.Interface))
-    res
+    val kinds = Set(SymbolKind.Class, SymbolKind.Enum, SymbolKind.Interface)
+    val res = PluginMain.workspaceSymbols(name, pattern, project, includeNonProjectItems, kinds)
+    merge(localSymbols(project, kinds).filter(s => s.getName == name), res)
   }
 
 }
@@ -1,9 +1,13 @@
 package com.github.gtache.lsp.contributors.gotoo
 
 import com.github.gtache.lsp.PluginMain
-import com.intellij.navigation.ChooseByNameContributor
+import com.github.gtache.lsp.contributors.LSPNavigationItem
+import com.github.gtache.lsp.editor.EditorEventManager
+import com.intellij.navigation.{ChooseByNameContributor, NavigationItem}
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.fileEditor.FileDocumentManager
 import com.intellij.openapi.project.Project
+import org.eclipse.lsp4j.SymbolKind
 
 /**
   * This trait is the base implementation of a GotoContributor
@@ -13,8 +17,43 @@ trait LSPGotoContributor extends ChooseByNameContributor {
 
   override def getNames(project: Project, includeNonProjectItems: Boolean): Array[String] = {
     val res = PluginMain.workspaceSymbols("", "", project, includeNonProjectItems).map(f => f.getName)
-    res
+    (localSymbols(project).map(s => s.getName) ++ res).distinct.toArray
   }
 
+  /**
+    * Returns the symbols of the open documents, already received from the servers (no request is made)
+    *
+    * @param project  The project
+    * @param onlyKind Filter the results to only the kinds in the set (all by default)
+    * @return The symbols
+    */
+  protected def localSymbols(project: Project, onlyKind: Set[SymbolKind] = Set()): Seq[LSPNavigationItem] = {
+    EditorEventManager.forProject(project).toList.flatMap(m => {
+      val document = m.editor.getDocument
+      val file = FileDocumentManager.getInstance().getFile(document)
+      if (file == null) Nil else {
+        m.documentSymbols.flatMap(s => s.flatten).filter(s => s.marker.isValid && (onlyKind.isEmpty || onlyKind.contains(s.kind))).map(s => {
+          val offset = s.marker.getStartOffset
+          val line = document.getLineNumber(offset)
+          LSPNavigationItem(s.name, null, project, file, line, offset - document.getLineStartOffset(line), s.icon)
+        })
+      }
+    })
+  }
+
+  /**
+    * Merges the symbols of the open documents with the symbols returned by the servers, removing the duplicates
+    *
+    * @param local  The symbols of the open documents
+    * @param remote The symbols returned by the servers
+    * @return The merged symbols
+    */
+  protected def merge(local: Seq[LSPNavigationItem], remote: Array[NavigationItem]): Array[NavigationItem] = {
+    val localKeys = local.map(l => (l.name, l.file, l.line)).toSet
+    (local ++ remote.filter {
+      case r: LSPNavigationItem => !localKeys.contains((r.name, r.file, r.line))
+      case _ => true
+    }).toArray
+  }
 
 }
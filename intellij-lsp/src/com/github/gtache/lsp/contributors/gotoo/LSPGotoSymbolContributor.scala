@@ -11,7 +11,7 @@ class LSPGotoSymbolContributor extends LSPGotoContributor {
 
   override def getItemsByName(name: String, pattern: String, project: Project, includeNonProjectItems: Boolean): Array[NavigationItem] = {
     val res = PluginMain.workspaceSymbols(name, pattern, project, includeNonProjectItems)
-    res
+    merge(localSymbols(project).filter(s => s.getName == name), res)
   }
 
 
@@ -16,20 +16,27 @@ import com.intellij.util.keyFMap.KeyFMap
 import javax.swing.Icon
 import org.jetbrains.annotations.Nullable
 
+object LSPPsiElement {
+  //Shared by all the elements : creating a key registers it globally, and the updater is found by reflection
+  private val COPYABLE_USER_MAP_KEY: Key[KeyFMap] = Key.create("COPYABLE_USER_MAP_KEY")
+  private val updater = AtomicFieldUpdater.forFieldOfType(classOf[LSPPsiElement], classOf[KeyFMap])
+}
+
 /**
   * A simple PsiElement for LSP
+  * Many of them are created for references and diagnostics, so an element only holds its own fields : the project and
+  * the manager are those of its file, and the reference is created when first requested
   *
-  * @param name    The name (text) of the element
-  * @param project The project it belongs to
-  * @param start   The offset in the editor where the element starts
-  * @param end     The offset where it ends
+  * @param name  The name (text) of the element
+  * @param start The offset in the editor where the element starts
+  * @param end   The offset where it ends
+  * @param file  The file containing the element
   */
-case class LSPPsiElement(var name: String, project: Project, start: Int, end: Int, file: PsiFile) extends PsiNameIdentifierOwner with NavigatablePsiElement {
+case class LSPPsiElement(var name: String, start: Int, end: Int, file: PsiFile) extends PsiNameIdentifierOwner with NavigatablePsiElement {
 
-  private val COPYABLE_USER_MAP_KEY: Key[KeyFMap] = Key.create("COPYABLE_USER_MAP_KEY")
-  private val updater = AtomicFieldUpdater.forFieldOfType(classOf[LSPPsiElement], classOf[KeyFMap])
-  private val manager = PsiManager.getInstance(project)
-  private val reference = LSPPsiReference(this)
+  import LSPPsiElement._
+
+  private lazy val reference = LSPPsiReference(this)
   //private val iconProvider : LSPIconProvider = GUIUtils.getIconProviderFor(PluginMain.getExtToServerDefinition.get(file.getVirtualFile.getExtension).orNull)
 
   /**
@@ -49,7 +56,7 @@ case class LSPPsiElement(var name: String, project: Project, start: Int, end: In
     *
     * @return the PSI manager instance.
     */
-  override def getManager: PsiManager = manager
+  override def getManager: PsiManager = file.getManager
 
   /**
     * Returns the array of children for the PSI element.
@@ -456,7 +463,7 @@ case class LSPPsiElement(var name: String, project: Project, start: Int, end: In
   /**
     * toString() should never be presented to the user.
     */
-  override def toString: String = "Name : " + name + " at offset " + start + " to " + end + " in " + project
+  override def toString: String = "Name : " + name + " at offset " + start + " to " + end + " in " + file
 
   /**
     * This method shouldn't be called by clients directly, because there are no guarantees of it being symmetric.
@@ -581,7 +588,7 @@ case class LSPPsiElement(var name: String, project: Project, start: Int, end: In
     * @throws PsiInvalidElementAccessException
     * if this element is invalid
     */
-  override def getProject: Project = project
+  override def getProject: Project = file.getProject
 
   /**
     * Returns the offset in the file to which the caret should be placed
@@ -14,9 +14,7 @@ class LSPInplaceRenamer(elementToRename: PsiNamedElement, substituted: PsiElemen
     import scala.collection.JavaConverters._
     EditorEventManager.forEditor(editor) match {
       case Some(m) =>
-        val (references, toClose) = m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true)
-        LSPRenameProcessor.addEditors(toClose)
-        references.map(f => f.getReference).toList.asJava
+        m.references(editor.getCaretModel.getCurrentCaret.getOffset, getOriginalElement = true).map(f => f.getReference).toList.asJava
       case None => List().asJava
     }
   }
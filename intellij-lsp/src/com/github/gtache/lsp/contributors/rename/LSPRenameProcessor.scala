@@ -9,7 +9,6 @@ import com.github.gtache.lsp.utils.FileUtils
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.fileEditor.{FileEditorManager, TextEditor}
 import com.intellij.openapi.project.Project
-import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.{PsiElement, PsiFile, PsiNamedElement, PsiReference}
 import com.intellij.refactoring.listeners.RefactoringElementListener
 import com.intellij.refactoring.rename.{RenameDialog, RenamePsiElementProcessor}
@@ -19,8 +18,6 @@ import scala.collection.mutable
 
 class LSPRenameProcessor extends RenamePsiElementProcessor {
 
-  import LSPRenameProcessor.openedEditors
-
   private var curElem: PsiElement = _
   private var elements: mutable.Set[PsiElement] = mutable.Set()
 
@@ -35,9 +32,8 @@ class LSPRenameProcessor extends RenamePsiElementProcessor {
             val editor = editorO.get
             if (editor.getContentComponent.hasFocus) {
               val offset = editor.getCaretModel.getCurrentCaret.getOffset
-              val (elements, openedEditors) = m.references(offset, getOriginalElement = true)
+              val elements = m.references(offset, getOriginalElement = true)
               this.elements ++= elements.toSet
-              LSPRenameProcessor.openedEditors ++= openedEditors.toSet
               this.curElem = elements.find(e => {
                 val range = e.getTextRange
                 val start = range.getStartOffset
@@ -74,9 +70,7 @@ class LSPRenameProcessor extends RenamePsiElementProcessor {
       case lsp: LSPPsiElement => if (elements.contains(lsp)) elements.map(e => e.getReference).asJava else {
         EditorEventManager.forEditor(FileUtils.editorFromPsiFile(lsp.getContainingFile)) match {
           case Some(m) =>
-            val refs = m.references(lsp.getTextOffset, getOriginalElement = true)
-            openedEditors ++= refs._2
-            refs._1.map(p => p.getReference).toList.asJava
+            m.references(lsp.getTextOffset, getOriginalElement = true).map(p => p.getReference).toList.asJava
           case None => Seq().asJava
         }
       }
@@ -88,23 +82,8 @@ class LSPRenameProcessor extends RenamePsiElementProcessor {
 
   //TODO may rename invalid elements
   override def renameElement(element: PsiElement, newName: String, usages: Array[UsageInfo], listener: RefactoringElementListener): Unit = {
-    WorkspaceEditHandler.applyEdit(element, newName, usages, listener, openedEditors.clone())
-    openedEditors.clear()
+    WorkspaceEditHandler.applyEdit(element, newName, usages, listener)
     elements.clear()
     curElem = null
   }
 }
-
-object LSPRenameProcessor { //TODO something better ?
-  private var openedEditors: mutable.Set[VirtualFile] = mutable.Set()
-
-  def clearEditors(): Unit = {
-    openedEditors.clear()
-  }
-
-  def getEditors: Set[VirtualFile] = openedEditors.toSet
-
-  def addEditors(toAdd: Iterable[VirtualFile]): Unit = {
-    openedEditors ++= toAdd
-  }
-}
\ No newline at end of file
@@ -0,0 +1,26 @@
+package com.github.gtache.lsp.contributors.structure
+
+import com.github.gtache.lsp.editor.EditorEventManager
+import com.github.gtache.lsp.utils.FileUtils
+import com.intellij.ide.structureView.{StructureViewBuilder, StructureViewModel, TreeBasedStructureViewBuilder}
+import com.intellij.lang.PsiStructureViewFactory
+import com.intellij.openapi.editor.Editor
+import com.intellij.psi.PsiFile
+
+/**
+  * A structure view using the document symbols sent by the servers
+  */
+class LSPStructureViewFactory extends PsiStructureViewFactory {
+
+  override def getStructureViewBuilder(psiFile: PsiFile): StructureViewBuilder = {
+    val file = psiFile.getVirtualFile
+    val uri = if (file != null) FileUtils.VFSToURI(file) else null
+    if (uri == null || EditorEventManager.forUri(uri).isEmpty) null else {
+      new TreeBasedStructureViewBuilder {
+        override def createStructureViewModel(editor: Editor): StructureViewModel = {
+          new LSPStructureViewModel(psiFile, editor, uri)
+        }
+      }
+    }
+  }
+}
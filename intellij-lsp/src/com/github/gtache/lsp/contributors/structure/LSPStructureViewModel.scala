@@ -0,0 +1,45 @@
+package com.github.gtache.lsp.contributors.structure
+
+import java.util
+
+import com.github.gtache.lsp.editor.EditorEventManager
+import com.intellij.ide.structureView.impl.common.PsiTreeElementBase
+import com.intellij.ide.structureView.{StructureViewModelBase, StructureViewTreeElement}
+import com.intellij.openapi.editor.Editor
+import com.intellij.psi.PsiFile
+
+/**
+  * The model of the LSP structure view, updated each time the server sends new document symbols
+  *
+  * @param psiFile The file
+  * @param editor  The editor
+  * @param uri     The uri of the file
+  */
+class LSPStructureViewModel(psiFile: PsiFile, editor: Editor, uri: String)
+  extends StructureViewModelBase(psiFile, editor, new LSPFileStructureElement(psiFile, uri)) {
+
+  private val listener: Runnable = () => fireModelUpdate()
+  EditorEventManager.forUri(uri).foreach(m => m.addSymbolsListener(listener))
+
+  override def dispose(): Unit = {
+    EditorEventManager.forUri(uri).foreach(m => m.removeSymbolsListener(listener))
+    super.dispose()
+  }
+}
+
+/**
+  * The root of the LSP structure view, containing the top-level symbols of the file
+  *
+  * @param psiFile The file
+  * @param uri     The uri of the file
+  */
+class LSPFileStructureElement(psiFile: PsiFile, uri: String) extends PsiTreeElementBase[PsiFile](psiFile) {
+
+  override def getChildrenBase: util.Collection[StructureViewTreeElement] = {
+    import scala.collection.JavaConverters._
+    EditorEventManager.forUri(uri).fold(Seq[StructureViewTreeElement]())(m =>
+      m.documentSymbols.map(s => new LSPSymbolStructureElement(s, psiFile, Seq(s.name)))).asJavaCollection
+  }
+
+  override def getPresentableText: String = psiFile.getName
+}
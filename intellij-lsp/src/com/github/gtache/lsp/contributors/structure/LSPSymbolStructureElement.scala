@@ -0,0 +1,49 @@
+package com.github.gtache.lsp.contributors.structure
+
+import com.github.gtache.lsp.editor.LSPDocumentSymbol
+import com.intellij.ide.structureView.StructureViewTreeElement
+import com.intellij.ide.util.treeView.smartTree.TreeElement
+import com.intellij.navigation.ItemPresentation
+import com.intellij.openapi.fileEditor.OpenFileDescriptor
+import com.intellij.psi.PsiFile
+import javax.swing.Icon
+
+/**
+  * An element of the LSP structure view, representing a document symbol
+  * Elements are equal if they have the same path and kind, so that the tree keeps its state when the symbols are refreshed
+  *
+  * @param symbol The symbol
+  * @param file   The file containing the symbol
+  * @param path   The names of the symbol and its parents
+  */
+class LSPSymbolStructureElement(val symbol: LSPDocumentSymbol, file: PsiFile, val path: Seq[String]) extends StructureViewTreeElement with ItemPresentation {
+
+  override def getValue: AnyRef = symbol
+
+  override def getPresentation: ItemPresentation = this
+
+  override def getChildren: Array[TreeElement] = {
+    symbol.children.map(c => new LSPSymbolStructureElement(c, file, path :+ c.name)).toArray
+  }
+
+  override def navigate(requestFocus: Boolean): Unit = {
+    if (canNavigate) new OpenFileDescriptor(file.getProject, file.getVirtualFile, symbol.marker.getStartOffset).navigate(requestFocus)
+  }
+
+  override def canNavigate: Boolean = symbol.marker.isValid && file.getVirtualFile != null
+
+  override def canNavigateToSource: Boolean = canNavigate
+
+  override def getPresentableText: String = symbol.name
+
+  override def getLocationString: String = symbol.detail
+
+  override def getIcon(unused: Boolean): Icon = symbol.icon
+
+  override def equals(obj: Any): Boolean = obj match {
+    case e: LSPSymbolStructureElement => e.path == path && e.symbol.kind == symbol.kind
+    case _ => false
+  }
+
+  override def hashCode(): Int = path.hashCode()
+}
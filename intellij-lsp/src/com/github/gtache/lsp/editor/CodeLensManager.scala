@@ -0,0 +1,236 @@
+package com.github.gtache.lsp.editor
+
+import java.awt.{Graphics, Point, Rectangle}
+import java.util.concurrent.{CancellationException, CompletableFuture, CompletionException, ScheduledFuture, TimeUnit}
+
+import com.github.gtache.lsp.client.languageserver.requestmanager.RequestManager
+import com.github.gtache.lsp.client.languageserver.wrapper.LanguageServerWrapperImpl
+import com.github.gtache.lsp.requests.Timeout.CODELENS_TIMEOUT
+import com.github.gtache.lsp.requests.Timeouts
+import com.github.gtache.lsp.utils.{ApplicationUtils, DocumentUtils, LSPExecutors}
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.colors.EditorFontType
+import com.intellij.openapi.editor.event.{VisibleAreaEvent, VisibleAreaListener}
+import com.intellij.openapi.editor.{DefaultLanguageHighlighterColors, Editor, EditorCustomElementRenderer, Inlay, RangeMarker}
+import com.intellij.ui.JBColor
+import org.eclipse.lsp4j.{CodeLens, CodeLensParams, TextDocumentIdentifier}
+
+import scala.collection.JavaConverters._
+
+/**
+  * Shows the code lenses of a document as inlays at the end of their line
+  * The lenses are requested once the document stays unchanged, and only the ones inside the visible area are resolved ;
+  * the resolve requests of the lenses scrolled out of view are cancelled
+  * The lenses are only accessed on the EDT
+  *
+  * @param editor          The editor
+  * @param wrapper         The wrapper of the server
+  * @param identifier      The identifier of the document
+  * @param batcher         The batcher of the requests of the document
+  * @param requests        Returns the RequestManager, with the document opened and synchronized
+  * @param resolveProvider Whether the server resolves the lenses
+  */
+class CodeLensManager(editor: Editor, wrapper: LanguageServerWrapperImpl, identifier: TextDocumentIdentifier, batcher: RequestBatcher,
+                      requests: () => RequestManager, resolveProvider: Boolean) {
+
+  import CodeLensManager._
+
+  private var lenses: Seq[LensState] = Seq.empty
+  @volatile private var pendingLenses: ScheduledFuture[_] = _
+  @volatile private var pendingResolve: ScheduledFuture[_] = _
+  private val visibleAreaListener: VisibleAreaListener = (_: VisibleAreaEvent) => scheduleResolve()
+
+  /**
+    * Starts listening to the scrolling of the editor
+    */
+  def registerListeners(): Unit = {
+    editor.getScrollingModel.addVisibleAreaListener(visibleAreaListener)
+  }
+
+  /**
+    * Stops listening to the scrolling of the editor and cancels the pending requests
+    */
+  def removeListeners(): Unit = {
+    editor.getScrollingModel.removeVisibleAreaListener(visibleAreaListener)
+    if (pendingLenses != null) pendingLenses.cancel(false)
+    if (pendingResolve != null) pendingResolve.cancel(false)
+    ApplicationUtils.invokeLater(() => clear())
+  }
+
+  /**
+    * Requests the lenses once the document stays unchanged for LENSES_DELAY
+    */
+  def scheduleCodeLenses(): Unit = {
+    val params = new CodeLensParams(identifier)
+    val trigger: Runnable = () => batcher.request[java.util.List[_ <: CodeLens]](Timeouts.CODELENS, CODELENS_TIMEOUT, r => r.codeLens(params))(result => {
+      val document = editor.getDocument
+      //The titles shown until the new lenses are resolved, to avoid flickering
+      val previousTitles = lenses.filter(l => l.title != null && l.marker.isValid).map(l => (l.marker.getStartOffset, l.title)).toMap
+      clear()
+      lenses = result.asScala.toList.flatMap(lens => {
+        val range = lens.getRange
+        if (range == null || range.getStart.getLine >= document.getLineCount) None else {
+          val offset = DocumentUtils.LSPPosToOffset(editor, range.getStart)
+          val state = new LensState(lens, document.createRangeMarker(offset, offset))
+          if (lens.getCommand != null) state.show(lens.getCommand.getTitle)
+          else if (!resolveProvider) state.resolved = true
+          else previousTitles.get(offset).foreach(t => state.show(t))
+          Some(state)
+        }
+      })
+      resolveVisible()
+    })
+    if (pendingLenses != null) pendingLenses.cancel(false)
+    pendingLenses = LSPExecutors.scheduler.schedule(trigger, LENSES_DELAY, TimeUnit.MILLISECONDS)
+  }
+
+  /**
+    * Resolves the visible lenses once the scrolling stops for RESOLVE_DELAY
+    */
+  private def scheduleResolve(): Unit = {
+    if (resolveProvider) {
+      val trigger: Runnable = () => ApplicationUtils.invokeLater(() => if (!editor.isDisposed) resolveVisible())
+      if (pendingResolve != null) pendingResolve.cancel(false)
+      pendingResolve = LSPExecutors.scheduler.schedule(trigger, RESOLVE_DELAY, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  /**
+    * Resolves the unresolved lenses inside the visible area, and cancels the resolution of the ones outside of it
+    */
+  private def resolveVisible(): Unit = {
+    if (resolveProvider && lenses.nonEmpty) {
+      val area = editor.getScrollingModel.getVisibleArea
+      val firstLine = editor.xyToLogicalPosition(new Point(0, area.y)).line
+      val lastLine = editor.xyToLogicalPosition(new Point(0, area.y + area.height)).line
+      val document = editor.getDocument
+      lenses.foreach(l => {
+        val visible = l.marker.isValid && {
+          val line = document.getLineNumber(l.marker.getStartOffset)
+          line >= firstLine && line <= lastLine
+        }
+        if (visible && !l.resolved && l.resolving == null) resolve(l)
+        else if (!visible && l.resolving != null) {
+          l.resolving.cancel(true)
+          l.resolving = null
+        }
+      })
+    }
+  }
+
+  /**
+    * Sends the resolve request of a lens ; cancelling its resolving future cancels the request on the server
+    *
+    * @param state The lens
+    */
+  private def resolve(state: LensState): Unit = {
+    val result = new CompletableFuture[CodeLens]()
+    state.resolving = result
+    wrapper.pool(() => if (!result.isDone) {
+      val requestManager = requests()
+      val future = if (requestManager != null) requestManager.resolveCodeLens(state.lens) else null
+      if (future == null) result.complete(null) else {
+        result.whenComplete((_, _) => if (result.isCancelled) future.cancel(true))
+        future.whenComplete((r, e) => if (e != null) result.completeExceptionally(e) else result.complete(r))
+      }
+    })
+    result.whenComplete((resolved, e) => e match {
+      case null =>
+        wrapper.notifySuccess(Timeouts.CODELENS)
+        ApplicationUtils.invokeLaterCoalesced(() => if (!state.disposed && (state.resolving eq result)) {
+          state.resolving = null
+          state.resolved = true
+          if (resolved != null && resolved.getCommand != null) {
+            state.lens = resolved
+            state.show(resolved.getCommand.getTitle)
+          }
+        })
+      case _: CancellationException =>
+      case c: CompletionException if c.getCause.isInstanceOf[CancellationException] =>
+      case _ =>
+        LOG.warn(e)
+        ApplicationUtils.invokeLaterCoalesced(() => if (state.resolving eq result) {
+          state.resolving = null
+          state.resolved = true
+        })
+    })
+  }
+
+  /**
+    * Removes all the lenses
+    */
+  private def clear(): Unit = {
+    lenses.foreach(l => l.dispose())
+    lenses = Seq.empty
+  }
+
+  /**
+    * A lens of the document
+    *
+    * @param lens   The lens, replaced once resolved
+    * @param marker The marker of the start of the range of the lens
+    */
+  private class LensState(var lens: CodeLens, val marker: RangeMarker) {
+    var resolved: Boolean = false
+    var resolving: CompletableFuture[CodeLens] = _
+    var disposed: Boolean = false
+    var title: String = _
+    private var inlay: Inlay = _
+
+    /**
+      * Shows the lens at the end of its line
+      *
+      * @param text The text of the lens
+      */
+    def show(text: String): Unit = {
+      if (inlay != null) inlay.dispose()
+      title = text
+      inlay = if (marker.isValid && text != null && !text.isEmpty) {
+        val document = editor.getDocument
+        editor.getInlayModel.addInlineElement(document.getLineEndOffset(document.getLineNumber(marker.getStartOffset)), new CodeLensRenderer(text))
+      } else null
+    }
+
+    /**
+      * Removes the inlay and cancels the resolution of the lens
+      */
+    def dispose(): Unit = {
+      disposed = true
+      if (resolving != null) resolving.cancel(true)
+      if (inlay != null) inlay.dispose()
+      marker.dispose()
+    }
+  }
+
+}
+
+object CodeLensManager {
+  private val LOG: Logger = Logger.getInstance(classOf[CodeLensManager])
+  private val LENSES_DELAY = 1000 //Time the document must stay unchanged before its lenses are requested, in ms
+  private val RESOLVE_DELAY = 200 //Time the visible area must stay still before its lenses are resolved, in ms
+  private val MARGIN = 2 //Number of spaces between the end of the line and the lens
+
+  /**
+    * Paints the title of a lens, using the color of the comments
+    *
+    * @param text The title
+    */
+  private class CodeLensRenderer(text: String) extends EditorCustomElementRenderer {
+
+    override def calcWidthInPixels(editor: Editor): Int = {
+      val metrics = editor.getContentComponent.getFontMetrics(editor.getColorsScheme.getFont(EditorFontType.ITALIC))
+      metrics.stringWidth(" " * MARGIN + text)
+    }
+
+    override def paint(editor: Editor, g: Graphics, r: Rectangle): Unit = {
+      val scheme = editor.getColorsScheme
+      val attributes = scheme.getAttributes(DefaultLanguageHighlighterColors.LINE_COMMENT)
+      val font = scheme.getFont(EditorFontType.ITALIC)
+      val metrics = g.getFontMetrics(font)
+      g.setFont(font)
+      g.setColor(if (attributes != null && attributes.getForegroundColor != null) attributes.getForegroundColor else JBColor.GRAY)
+      g.drawString(" " * MARGIN + text, r.x, r.y + (r.height - metrics.getHeight) / 2 + metrics.getAscent)
+    }
+  }
+
+}
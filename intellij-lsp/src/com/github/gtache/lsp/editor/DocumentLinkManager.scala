@@ -0,0 +1,218 @@
+package com.github.gtache.lsp.editor
+
+import java.awt.Cursor
+import java.util.concurrent.{ExecutionException, TimeUnit, TimeoutException}
+
+import com.github.gtache.lsp.client.languageserver.requestmanager.RequestManager
+import com.github.gtache.lsp.client.languageserver.wrapper.LanguageServerWrapperImpl
+import com.github.gtache.lsp.requests.Timeout.DOC_LINK_TIMEOUT
+import com.github.gtache.lsp.requests.Timeouts
+import com.github.gtache.lsp.utils.{ApplicationUtils, DocumentUtils, FileUtils}
+import com.intellij.ide.BrowserUtil
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.colors.EditorColors
+import com.intellij.openapi.editor.markup.{HighlighterLayer, HighlighterTargetArea, RangeHighlighter}
+import com.intellij.openapi.editor.{Editor, RangeMarker}
+import com.intellij.openapi.fileEditor.OpenFileDescriptor
+import org.eclipse.lsp4j.jsonrpc.JsonRpcException
+import org.eclipse.lsp4j.{DocumentLink, DocumentLinkParams, TextDocumentIdentifier}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Manages the document links of a document
+  * The links are only requested when the mouse hovers the document with Ctrl pressed, once per modification of the document,
+  * and a link is only resolved when it is hovered or clicked ; nothing is requested while typing
+  * Must only be used on the EDT
+  *
+  * @param editor          The editor
+  * @param wrapper         The wrapper of the server
+  * @param identifier      The identifier of the document
+  * @param batcher         The batcher of the requests of the document
+  * @param requests        Returns the RequestManager, with the document opened and synchronized
+  * @param resolveProvider Whether the server resolves the links
+  */
+class DocumentLinkManager(editor: Editor, wrapper: LanguageServerWrapperImpl, identifier: TextDocumentIdentifier, batcher: RequestBatcher,
+                          requests: () => RequestManager, resolveProvider: Boolean) {
+
+  import DocumentLinkManager._
+
+  private var links: Seq[LinkState] = Seq.empty
+  private var linksStamp: Long = -1L
+  private var requestedStamp: Long = -1L
+  private var highlighter: RangeHighlighter = _
+
+  /**
+    * Underlines the link under the mouse, requesting the links of the document if they are not known for its current state
+    *
+    * @param offset The offset under the mouse
+    * @return true if there is a known link at the offset
+    */
+  def mouseMoved(offset: Int): Boolean = {
+    val stamp = editor.getDocument.getModificationStamp
+    if (linksStamp == stamp) {
+      linkAt(offset) match {
+        case Some(link) =>
+          if (highlighter == null || highlighter.getStartOffset != link.marker.getStartOffset || highlighter.getEndOffset != link.marker.getEndOffset) {
+            clearHighlight()
+            highlighter = editor.getMarkupModel.addRangeHighlighter(link.marker.getStartOffset, link.marker.getEndOffset, HighlighterLayer.HYPERLINK,
+              editor.getColorsScheme.getAttributes(EditorColors.REFERENCE_HYPERLINK_COLOR), HighlighterTargetArea.EXACT_RANGE)
+            editor.getContentComponent.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR))
+          }
+          if (link.target == null && !link.resolved) resolve(link, _ => {})
+          true
+        case None =>
+          clearHighlight()
+          false
+      }
+    } else {
+      if (requestedStamp != stamp) {
+        requestedStamp = stamp
+        clearHighlight()
+        requestLinks(() => mouseMoved(offset))
+      }
+      false
+    }
+  }
+
+  /**
+    * Opens the link at the given offset, if any
+    *
+    * @param offset The offset
+    * @return true if there is a link at the offset
+    */
+  def click(offset: Int): Boolean = {
+    if (linksStamp != editor.getDocument.getModificationStamp) false else {
+      linkAt(offset) match {
+        case Some(link) =>
+          clearHighlight()
+          if (link.target != null) open(link.target) else resolve(link, target => open(target))
+          true
+        case None => false
+      }
+    }
+  }
+
+  /**
+    * Removes the underline of the hovered link
+    */
+  def clearHighlight(): Unit = {
+    if (highlighter != null) {
+      editor.getMarkupModel.removeHighlighter(highlighter)
+      editor.getContentComponent.setCursor(Cursor.getDefaultCursor)
+      highlighter = null
+    }
+  }
+
+  /**
+    * Removes all the links
+    */
+  def dispose(): Unit = {
+    clearHighlight()
+    links.foreach(l => l.marker.dispose())
+    links = Seq.empty
+    linksStamp = -1L
+  }
+
+  private def linkAt(offset: Int): Option[LinkState] = {
+    links.find(l => l.marker.isValid && l.marker.getStartOffset <= offset && offset < l.marker.getEndOffset)
+  }
+
+  /**
+    * Requests the links for the current state of the document
+    *
+    * @param onReceived Called once the links are received
+    */
+  private def requestLinks(onReceived: () => Unit): Unit = {
+    val params = new DocumentLinkParams(identifier)
+    batcher.request(Timeouts.DOC_LINK, DOC_LINK_TIMEOUT, r => r.documentLink(params))(result => {
+      val document = editor.getDocument
+      links.foreach(l => l.marker.dispose())
+      links = result.asScala.toList.flatMap(link => {
+        val range = link.getRange
+        if (range == null || range.getEnd.getLine >= document.getLineCount) None else {
+          val start = DocumentUtils.LSPPosToOffset(editor, range.getStart)
+          val end = DocumentUtils.LSPPosToOffset(editor, range.getEnd)
+          if (start < end) Some(new LinkState(link, document.createRangeMarker(start, end))) else None
+        }
+      })
+      linksStamp = document.getModificationStamp
+      onReceived()
+    })
+  }
+
+  /**
+    * Resolves the target of a link, at most once
+    *
+    * @param link       The link
+    * @param onResolved Called with the target, if the server returns one
+    */
+  private def resolve(link: LinkState, onResolved: String => Unit): Unit = {
+    if (resolveProvider && !link.resolved) link.onResolved += onResolved
+    if (resolveProvider && !link.resolved && !link.resolving) {
+      link.resolving = true
+      wrapper.pool(() => {
+        val requestManager = requests()
+        val future = if (requestManager != null) requestManager.documentLinkResolve(link.link) else null
+        val resolved = if (future == null) null else {
+          try {
+            val res = future.get(DOC_LINK_TIMEOUT, TimeUnit.MILLISECONDS)
+            wrapper.notifySuccess(Timeouts.DOC_LINK)
+            res
+          } catch {
+            case e: TimeoutException =>
+              LOG.warn(e)
+              wrapper.notifyFailure(Timeouts.DOC_LINK)
+              null
+            case e@(_: java.io.IOException | _: JsonRpcException | _: ExecutionException) =>
+              LOG.warn(e)
+              wrapper.crashed(e.asInstanceOf[Exception])
+              null
+          }
+        }
+        ApplicationUtils.invokeLater(() => {
+          link.resolving = false
+          link.resolved = true
+          if (resolved != null && resolved.getTarget != null) {
+            link.target = resolved.getTarget
+            link.onResolved.foreach(f => f(link.target))
+          }
+          link.onResolved.clear()
+        })
+      })
+    }
+  }
+
+  /**
+    * Opens a target, in the IDE if it is a file, or in the browser otherwise
+    *
+    * @param target The uri of the target
+    */
+  private def open(target: String): Unit = {
+    if (target.startsWith("file:")) {
+      val file = FileUtils.URIToVFS(target)
+      if (file != null) new OpenFileDescriptor(editor.getProject, file).navigate(true) else LOG.warn("No file for link " + target)
+    } else {
+      BrowserUtil.browse(target)
+    }
+  }
+
+  /**
+    * A link of the document
+    *
+    * @param link   The link
+    * @param marker The marker of the range of the link
+    */
+  private class LinkState(val link: DocumentLink, val marker: RangeMarker) {
+    var target: String = link.getTarget
+    var resolving: Boolean = false
+    var resolved: Boolean = false
+    val onResolved: ArrayBuffer[String => Unit] = ArrayBuffer()
+  }
+
+}
+
+object DocumentLinkManager {
+  private val LOG: Logger = Logger.getInstance(classOf[DocumentLinkManager])
+}
@@ -1,23 +1,23 @@
 package com.github.gtache.lsp.editor
 
 import java.awt._
-import java.awt.event.{KeyEvent, MouseAdapter, MouseEvent}
+import java.awt.event.{HierarchyEvent, HierarchyListener, KeyEvent}
 import java.io.File
 import java.net.URI
 import java.util
-import java.util.concurrent.{ExecutionException, TimeUnit, TimeoutException}
-import java.util.{Timer, TimerTask}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{CompletableFuture, CopyOnWriteArraySet, ExecutionException, ScheduledFuture, TimeUnit, TimeoutException}
 
 import com.github.gtache.lsp.actions.LSPReferencesAction
 import com.github.gtache.lsp.client.languageserver.ServerOptions
 import com.github.gtache.lsp.client.languageserver.requestmanager.RequestManager
 import com.github.gtache.lsp.client.languageserver.wrapper.LanguageServerWrapperImpl
 import com.github.gtache.lsp.contributors.psi.LSPPsiElement
-import com.github.gtache.lsp.contributors.rename.LSPRenameProcessor
-import com.github.gtache.lsp.requests.{HoverHandler, Timeouts, WorkspaceEditHandler}
+import com.github.gtache.lsp.requests.{HoverHandler, SemanticHighlightingHandler, Timeouts, WorkspaceEditHandler}
 import com.github.gtache.lsp.settings.LSPState
-import com.github.gtache.lsp.utils.{DocumentUtils, FileUtils, GUIUtils}
+import com.github.gtache.lsp.utils.{DocumentUtils, FileUtils, GUIUtils, LSPExecutors}
 import com.intellij.codeInsight.CodeInsightSettings
+import com.intellij.codeInsight.folding.CodeFoldingManager
 import com.intellij.codeInsight.completion.InsertionContext
 import com.intellij.codeInsight.hint.HintManager
 import com.intellij.codeInsight.lookup._
@@ -29,31 +29,41 @@ import com.intellij.openapi.editor.colors.EditorColors
 import com.intellij.openapi.editor.event._
 import com.intellij.openapi.editor.ex.EditorSettingsExternalizable
 import com.intellij.openapi.editor.markup._
-import com.intellij.openapi.editor.{Editor, LogicalPosition}
+import com.intellij.openapi.editor.{Editor, LogicalPosition, RangeMarker}
 import com.intellij.openapi.fileEditor.{FileDocumentManager, FileEditorManager, OpenFileDescriptor, TextEditor}
 import com.intellij.openapi.fileTypes.PlainTextLanguage
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.util.TextRange
 import com.intellij.openapi.util.text.StringUtil
 import com.intellij.openapi.vfs.{LocalFileSystem, VirtualFile}
-import com.intellij.psi.{PsiDocumentManager, PsiElement}
+import com.intellij.psi.{PsiDocumentManager, PsiElement, PsiManager}
 import com.intellij.ui.Hint
-import com.intellij.uiDesigner.core.{GridConstraints, GridLayoutManager, Spacer}
-import javax.swing.{JFrame, JLabel, JPanel}
+import com.intellij.ui.awt.RelativePoint
 import org.eclipse.lsp4j._
 import org.eclipse.lsp4j.jsonrpc.JsonRpcException
 
+import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
 
 object EditorEventManager {
   private val HOVER_TIME_THRES: Long = EditorSettingsExternalizable.getInstance().getQuickDocOnMouseOverElementDelayMillis * 1000000
-  private val SCHEDULE_THRES = 10000000 //Time before the Timer is scheduled
+  private val SCHEDULE_THRES = 10000000 //Time before the hover is scheduled
   private val POPUP_THRES = HOVER_TIME_THRES / 1000000 + 20
   private val CTRL_THRES = 500000000 //Time between requests when ctrl is pressed (500ms)
+  private val FULL_SYNC_DELAY = 300 //Time during which changes are coalesced before the whole text is sent to a Full sync server, in ms
+  private val SELECTION_HIGHLIGHT_DELAY = 150 //Time the selection must stay still before its highlights are requested, in ms
+  private val MAX_CACHED_HIGHLIGHTS = 32 //Number of symbols whose highlights are kept until the document changes
+  private val FOLDING_DELAY = 500 //Time the document must stay unchanged before its folding ranges are requested, in ms
+  private val SYMBOLS_DELAY = 1000 //Time the document must stay unchanged before its symbols are requested, in ms
 
-  private val uriToManager: mutable.Map[String, EditorEventManager] = mutable.HashMap()
-  private val editorToManager: mutable.Map[Editor, EditorEventManager] = mutable.HashMap()
+  private val fullSyncCount = new AtomicLong(0)
+  private val fullSyncChars = new AtomicLong(0)
+  private val coalescedChanges = new AtomicLong(0)
+  private val incrementalSyncChars = new AtomicLong(0)
+
+  private val uriToManager: TrieMap[String, EditorEventManager] = TrieMap()
+  private val editorToManager: TrieMap[Editor, EditorEventManager] = TrieMap()
 
   @volatile private var isKeyPressed = false
   @volatile private var isCtrlDown = false
@@ -70,6 +80,7 @@ object EditorEventManager {
           isCtrlDown = false
           if (ctrlRange != null) ctrlRange.dispose()
           ctrlRange = null
+          editorToManager.values.foreach(m => m.documentLinks.foreach(l => l.clearHighlight()))
         }
       case _ =>
     }
@@ -81,13 +92,7 @@ object EditorEventManager {
     * @return The manager for the given uri, or None
     */
   def forUri(uri: String): Option[EditorEventManager] = {
-    prune()
-    uriToManager.get(uri)
-  }
-
-  private def prune(): Unit = {
-    editorToManager.filter(e => !e._2.wrapper.isActive).keys.foreach(editorToManager.remove)
-    uriToManager.filter(e => !e._2.wrapper.isActive).keys.foreach(uriToManager.remove)
+    uriToManager.get(uri).filter(m => m.wrapper.isActive)
   }
 
   /**
@@ -95,16 +100,38 @@ object EditorEventManager {
     * @return The manager for the given editor, or None
     */
   def forEditor(editor: Editor): Option[EditorEventManager] = {
-    prune()
-    editorToManager.get(editor)
+    editorToManager.get(editor).filter(m => m.wrapper.isActive)
+  }
+
+  /**
+    * @param project A project
+    * @return The managers of the documents of the project
+    */
+  def forProject(project: Project): Iterable[EditorEventManager] = {
+    editorToManager.values.filter(m => m.wrapper.isActive && m.editor.getProject == project)
   }
 
   /**
     * Tells the server that all the documents will be saved
     */
   def willSaveAll(): Unit = {
-    prune()
-    editorToManager.foreach(e => e._2.willSave())
+    editorToManager.values.foreach(m => if (m.wrapper.isActive) m.willSave())
+  }
+
+  /**
+    * @return The amount of text sent to the servers by document synchronization
+    */
+  def syncMetrics: String = {
+    "Full syncs : " + fullSyncCount.get() + " (" + fullSyncChars.get() + " chars, " + coalescedChanges.get() + " changes coalesced), incremental : " + incrementalSyncChars.get() + " chars"
+  }
+
+  /**
+    * Unregisters all the managers of a wrapper (called when it stops)
+    *
+    * @param wrapper The wrapper
+    */
+  def removeManagers(wrapper: LanguageServerWrapperImpl): Unit = {
+    editorToManager.values.filter(m => m.wrapper == wrapper).foreach(m => m.unregister())
   }
 }
 
@@ -131,12 +158,24 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
 
   import scala.collection.JavaConverters._
 
-  private val identifier: TextDocumentIdentifier = new TextDocumentIdentifier(FileUtils.editorToURIString(editor))
+  private val identifier: TextDocumentIdentifier = new TextDocumentIdentifier(FileUtils.editorToURIString(editor).intern())
   private val LOG: Logger = Logger.getInstance(classOf[EditorEventManager])
   private val changesParams = new DidChangeTextDocumentParams(new VersionedTextDocumentIdentifier(), new util.ArrayList[TextDocumentContentChangeEvent]())
   private val selectedSymbHighlights: mutable.Set[RangeHighlighter] = mutable.HashSet()
+  //Highlights of the symbols already requested for the current state of the document, accessed on the EDT only
+  private val selectionHighlightsCache: mutable.Map[TextRange, Seq[TextRange]] = mutable.LinkedHashMap()
+  private var selectionHighlightsStamp: Long = -1L
+  private var highlightedSymbol: TextRange = _
+  @volatile private var pendingSelectionHighlight: ScheduledFuture[_] = _
+  //The folding ranges of the last version received, as markers following the edits made since
+  @volatile private var foldingMarkers: Seq[(RangeMarker, String)] = Seq.empty
+  @volatile private var pendingFolding: ScheduledFuture[_] = _
+  //The symbols of the last version received, with markers following the edits made since
+  @volatile private var symbols: Seq[LSPDocumentSymbol] = Seq.empty
+  @volatile private var pendingSymbols: ScheduledFuture[_] = _
+  private val symbolsListeners: util.Set[Runnable] = new CopyOnWriteArraySet[Runnable]()
   private val diagnosticsHighlights: mutable.Set[DiagnosticRangeHighlighter] = mutable.HashSet()
-  private val syncKind = serverOptions.syncKind
+  @volatile private var syncKind = serverOptions.syncKind
 
   private val completionTriggers =
     if (serverOptions.completionOptions != null && serverOptions.completionOptions.getTriggerCharacters != null)
@@ -161,19 +200,34 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     if (serverOptions.semanticHighlightingOptions != null && serverOptions.semanticHighlightingOptions.getScopes != null)
       serverOptions.semanticHighlightingOptions.getScopes.asScala.toList.map(l => l.asScala.toList) else null
 
+  private val semanticTokens: SemanticTokensStore =
+    if (semanticHighlightingScopes != null) new SemanticTokensStore(editor, SemanticHighlightingHandler.toAttributesKeys(semanticHighlightingScopes)) else null
+
   private val project: Project = editor.getProject
   @volatile var needSave = false
-  private var hoverThread = new Timer("Hover", true)
+  @volatile private var pendingHover: ScheduledFuture[_] = _
   private var version: Int = -1
   private var predTime: Long = -1L
   private var ctrlTime: Long = -1L
-  private var isOpen: Boolean = false
+  @volatile private var isOpen: Boolean = false
   private var mouseInEditor: Boolean = true
   private var currentHint: Hint = _
   private var holdDCE: Boolean = false
   private val DCEs: ArrayBuffer[DocumentEvent] = ArrayBuffer()
+  private var pendingFullSync: ScheduledFuture[_] = _
+  private var lastSyncedText: String = _
+  private val batcher: RequestBatcher = new RequestBatcher(editor, wrapper, () => server)
+  private val codeLenses: Option[CodeLensManager] = Option(serverOptions.codeLensOptions).map(o =>
+    new CodeLensManager(editor, wrapper, identifier, batcher, () => server, o.isResolveProvider))
+  private val documentLinks: Option[DocumentLinkManager] = Option(serverOptions.documentLinkOptions).map(o =>
+    new DocumentLinkManager(editor, wrapper, identifier, batcher, () => server, o.getResolveProvider != null && o.getResolveProvider))
+  //Documents of background tabs are only opened on the server when they are shown (or needed by a request)
+  @volatile private var visible: Boolean = false
+  private val visibilityListener: HierarchyListener = (e: HierarchyEvent) => {
+    if ((e.getChangeFlags & HierarchyEvent.SHOWING_CHANGED) != 0 && updateVisibility()) wrapper.pool(() => ensureOpen())
+  }
 
-  uriToManager.put(FileUtils.editorToURIString(editor), this)
+  uriToManager.put(identifier.getUri, this)
   editorToManager.put(editor, this)
   changesParams.getTextDocument.setUri(identifier.getUri)
 
@@ -199,39 +253,21 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     val lPos = editor.getCaretModel.getCurrentCaret.getLogicalPosition
     val point = editor.logicalPositionToXY(lPos)
     val params = new TextDocumentPositionParams(identifier, DocumentUtils.logicalToLSPPos(lPos, editor))
-    pool(() => {
-      if (!editor.isDisposed) {
-        val future = requestManager.signatureHelp(params)
-        if (future != null) {
-          try {
-            val signature = future.get(SIGNATURE_TIMEOUT, TimeUnit.MILLISECONDS)
-            wrapper.notifySuccess(Timeouts.SIGNATURE)
-            if (signature != null) {
-              val signatures = signature.getSignatures
-              if (signatures != null && !signatures.isEmpty) {
-                val scalaSignatures = signatures.asScala
-                val activeSignatureIndex = signature.getActiveSignature
-                val activeParameterIndex = signature.getActiveParameter
-                val activeParameter = scalaSignatures(activeSignatureIndex).getParameters.get(activeParameterIndex).getLabel
-                val builder = StringBuilder.newBuilder
-                builder.append("<html>")
-                scalaSignatures.take(activeSignatureIndex).foreach(sig => builder.append(sig.getLabel).append("<br>"))
-                builder.append("<b>").append(scalaSignatures(activeSignatureIndex).getLabel
-                  .replace(activeParameter, "<font color=\"yellow\">" + activeParameter + "</font>")).append("</b>")
-                scalaSignatures.drop(activeSignatureIndex + 1).foreach(sig => builder.append("<br>").append(sig.getLabel))
-                builder.append("</html>")
-                invokeLater(() => currentHint = createAndShowEditorHint(editor, builder.toString(), point, HintManager.UNDER, HintManager.HIDE_BY_OTHER_HINT))
-              }
-            }
-          } catch {
-            case e: TimeoutException =>
-              LOG.warn(e)
-              wrapper.notifyFailure(Timeouts.SIGNATURE)
-            case e@(_: java.io.IOException | _: JsonRpcException | _: ExecutionException) =>
-              LOG.warn(e)
-              wrapper.crashed(e.asInstanceOf[Exception])
-          }
-        }
+    batcher.request(Timeouts.SIGNATURE, SIGNATURE_TIMEOUT, r => r.signatureHelp(params))(signature => {
+      val signatures = signature.getSignatures
+      if (signatures != null && !signatures.isEmpty) {
+        val scalaSignatures = signatures.asScala
+        val activeSignatureIndex = signature.getActiveSignature
+        val activeParameterIndex = signature.getActiveParameter
+        val activeParameter = scalaSignatures(activeSignatureIndex).getParameters.get(activeParameterIndex).getLabel
+        val builder = StringBuilder.newBuilder
+        builder.append("<html>")
+        scalaSignatures.take(activeSignatureIndex).foreach(sig => builder.append(sig.getLabel).append("<br>"))
+        builder.append("<b>").append(scalaSignatures(activeSignatureIndex).getLabel
+          .replace(activeParameter, "<font color=\"yellow\">" + activeParameter + "</font>")).append("</b>")
+        scalaSignatures.drop(activeSignatureIndex + 1).foreach(sig => builder.append("<br>").append(sig.getLabel))
+        builder.append("</html>")
+        currentHint = createAndShowEditorHint(editor, builder.toString(), point, HintManager.UNDER, HintManager.HIDE_BY_OTHER_HINT)
       }
     })
   }
@@ -249,7 +285,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     params.setRange(range)
     val context = new CodeActionContext(diagnosticsHighlights.map(_.diagnostic).toList.asJava)
     params.setContext(context)
-    val future = requestManager.codeAction(params)
+    val future = server.codeAction(params)
     if (future != null) {
       try {
         val res = future.get(CODEACTION_TIMEOUT, TimeUnit.MILLISECONDS).asScala
@@ -278,7 +314,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * @return The suggestions
     */
   def completion(pos: Position): Iterable[_ <: LookupElement] = {
-    val request = requestManager.completion(new CompletionParams(identifier, pos))
+    val request = server.completion(new CompletionParams(identifier, pos))
     if (request != null) {
       try {
         val res = request.get(COMPLETION_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -394,13 +430,13 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * @param commands The commands to execute
     */
   def executeCommands(commands: Iterable[Command]): Unit = {
-    pool(() => {
+    wrapper.pool(() => {
       if (!editor.isDisposed) {
         commands.map(c => {
           val params = new ExecuteCommandParams()
           params.setArguments(c.getArguments)
           params.setCommand(c.getCommand)
-          requestManager.executeCommand(params)
+          server.executeCommand(params)
         }).foreach(f => {
           if (f != null) {
             try {
@@ -430,7 +466,8 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * @param diagnostics The diagnostics to apply from the server
     */
   def diagnostics(diagnostics: Iterable[Diagnostic]): Unit = {
-    invokeLater(() => {
+    //Only the latest diagnostics of the document matter, the previous ones can be dropped if they were not shown yet
+    invokeLaterCoalesced(editor, "diagnostics", () => {
       if (!editor.isDisposed) {
         diagnosticsHighlights.synchronized {
           diagnosticsHighlights.foreach(highlight => editor.getMarkupModel.removeHighlighter(highlight.rangeHighlighter))
@@ -465,14 +502,12 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
 
   private def releaseDCE(): Unit = {
     DCEs.synchronized {
-      if (!editor.isDisposed) {
+      if (!editor.isDisposed && isOpen) {
         changesParams.synchronized {
           syncKind match {
             case TextDocumentSyncKind.None =>
             case TextDocumentSyncKind.Full =>
-              val changeEvent = new TextDocumentContentChangeEvent()
-              changeEvent.setText(editor.getDocument.getText)
-              changesParams.getContentChanges.add(changeEvent)
+              flushFullSync(force = true)
             case TextDocumentSyncKind.Incremental =>
               DCEs.filter(e => e.getDocument == editor.getDocument).map(event => {
                 val changeEvent = new TextDocumentContentChangeEvent()
@@ -499,9 +534,12 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
                 changeEvent
               }).foreach(changesParams.getContentChanges.add(_))
           }
+          if (!changesParams.getContentChanges.isEmpty) {
+            changesParams.getContentChanges.asScala.foreach(c => incrementalSyncChars.addAndGet(c.getText.length))
+            requestManager.didChange(changesParams)
+            changesParams.getContentChanges.clear()
+          }
         }
-        requestManager.didChange(changesParams)
-        changesParams.getContentChanges.clear()
       }
     }
   }
@@ -517,17 +555,18 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
         DCEs.append(event)
       }
     } else {
-      if (!editor.isDisposed) {
+      if (!editor.isDisposed && isOpen) {
         if (event.getDocument == editor.getDocument) {
+          if (semanticTokens != null) shiftSemanticTokens(event)
           changesParams.synchronized {
             predTime = System.nanoTime() //So that there are no hover events while typing
-            changesParams.getTextDocument.setVersion({
-              version += 1
-              version - 1
-            })
             syncKind match {
               case TextDocumentSyncKind.None =>
               case TextDocumentSyncKind.Incremental =>
+                changesParams.getTextDocument.setVersion({
+                  version += 1
+                  version - 1
+                })
                 val changeEvent = new TextDocumentContentChangeEvent()
                 val newText = event.getNewFragment
                 val offset = event.getOffset
@@ -550,15 +589,18 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
                 changeEvent.setRangeLength(newTextLength)
                 changeEvent.setText(newText.toString)
                 changesParams.getContentChanges.add(changeEvent)
+                incrementalSyncChars.addAndGet(changeEvent.getText.length)
+                requestManager.didChange(changesParams)
+                changesParams.getContentChanges.clear()
 
               case TextDocumentSyncKind.Full =>
-                val changeEvent = new TextDocumentContentChangeEvent()
-                changeEvent.setText(editor.getDocument.getText)
-                changesParams.getContentChanges.add(changeEvent)
+                scheduleFullSync()
             }
-            requestManager.didChange(changesParams)
-            changesParams.getContentChanges.clear()
           }
+          scheduleFoldingRanges()
+          scheduleDocumentSymbols()
+          codeLenses.foreach(c => c.scheduleCodeLenses())
+          wrapper.documentUsed(this)
         } else {
           LOG.error("Wrong document for the EditorEventManager")
         }
@@ -566,44 +608,295 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     }
   }
 
+  /**
+    * @return The folding regions (range, placeholder) sent by the server, mapped through the edits made since
+    */
+  def foldingRegions: Seq[(TextRange, String)] = {
+    foldingMarkers.filter(m => m._1.isValid && m._1.getStartOffset < m._1.getEndOffset)
+      .map(m => (new TextRange(m._1.getStartOffset, m._1.getEndOffset), m._2))
+  }
+
+  /**
+    * Requests the folding ranges once the document stays unchanged for FOLDING_DELAY
+    */
+  private def scheduleFoldingRanges(): Unit = {
+    if (serverOptions.foldingRangeProvider) {
+      val params = new FoldingRangeRequestParams(identifier)
+      val trigger: Runnable = () => batcher.request(Timeouts.FOLDING, FOLDING_TIMEOUT, r => r.foldingRange(params))(ranges => {
+        val document = editor.getDocument
+        val markers = ranges.asScala.toList.flatMap(range => {
+          if (range.getStartLine < 0 || range.getEndLine >= document.getLineCount || range.getStartLine > range.getEndLine) None else {
+            def offset(line: Int, character: Integer): Int = {
+              val lineEnd = document.getLineEndOffset(line)
+              if (character == null) lineEnd else math.min(document.getLineStartOffset(line) + character, lineEnd)
+            }
+
+            val start = offset(range.getStartLine, range.getStartCharacter)
+            val end = offset(range.getEndLine, range.getEndCharacter)
+            if (start < end) Some((document.createRangeMarker(start, end), if (range.getKind == FoldingRangeKind.Imports) "import ..." else "...")) else None
+          }
+        })
+        foldingMarkers.foreach(m => m._1.dispose())
+        foldingMarkers = markers
+        PsiDocumentManager.getInstance(project).performWhenAllCommitted(() =>
+          if (!editor.isDisposed) CodeFoldingManager.getInstance(project).updateFoldRegions(editor))
+      })
+      pendingFolding = reschedule(pendingFolding, trigger, FOLDING_DELAY)
+    }
+  }
+
+  /**
+    * @return The symbols of the document (hierarchical if the server supports it), empty until the server answers
+    */
+  def documentSymbols: Seq[LSPDocumentSymbol] = symbols
+
+  /**
+    * @param listener A listener called on the EDT each time new symbols are received
+    */
+  def addSymbolsListener(listener: Runnable): Unit = symbolsListeners.add(listener)
+
+  /**
+    * @param listener The listener to remove
+    */
+  def removeSymbolsListener(listener: Runnable): Unit = symbolsListeners.remove(listener)
+
+  /**
+    * Requests the document symbols once the document stays unchanged for SYMBOLS_DELAY
+    */
+  private def scheduleDocumentSymbols(): Unit = {
+    if (serverOptions.documentSymbolProvider) {
+      val params = new DocumentSymbolParams(identifier)
+      val trigger: Runnable = () => batcher.request(Timeouts.SYMBOLS, SYMBOLS_TIMEOUT, r => r.documentSymbol(params))(result => {
+        val document = editor.getDocument
+        val iconProvider = GUIUtils.getIconProviderFor(wrapper.serverDefinition)
+
+        def toSymbol(name: String, detail: String, kind: SymbolKind, range: Range, children: Seq[LSPDocumentSymbol]): Option[LSPDocumentSymbol] = {
+          if (range == null || range.getStart.getLine >= document.getLineCount || range.getEnd.getLine >= document.getLineCount) None else {
+            val start = DocumentUtils.LSPPosToOffset(editor, range.getStart)
+            val end = math.max(start, DocumentUtils.LSPPosToOffset(editor, range.getEnd))
+            Some(LSPDocumentSymbol(name, detail, kind, iconProvider.getSymbolIcon(kind), document.createRangeMarker(start, end), children))
+          }
+        }
+
+        def convert(symbol: DocumentSymbol): Option[LSPDocumentSymbol] = {
+          val children = if (symbol.getChildren != null) symbol.getChildren.asScala.flatMap(convert).toList else Nil
+          toSymbol(symbol.getName, symbol.getDetail, symbol.getKind, if (symbol.getSelectionRange != null) symbol.getSelectionRange else symbol.getRange, children)
+        }
+
+        val converted = result.asScala.toList.flatMap(e => if (e.isRight) convert(e.getRight) else {
+          val info = e.getLeft
+          if (info.getLocation != null) toSymbol(info.getName, info.getContainerName, info.getKind, info.getLocation.getRange, Nil) else None
+        })
+        symbols.foreach(s => s.dispose())
+        symbols = converted
+        symbolsListeners.asScala.foreach(l => l.run())
+      })
+      pendingSymbols = reschedule(pendingSymbols, trigger, SYMBOLS_DELAY)
+    }
+  }
+
+  /**
+    * Schedules a task on the shared scheduler, cancelling the previous one if it is still pending
+    *
+    * @param previous The previous task (may be null)
+    * @param task     The task
+    * @param delay    The delay, in ms
+    * @return The scheduled task
+    */
+  private def reschedule(previous: ScheduledFuture[_], task: Runnable, delay: Int): ScheduledFuture[_] = {
+    if (previous != null) previous.cancel(false)
+    LSPExecutors.scheduler.schedule(task, delay, TimeUnit.MILLISECONDS)
+  }
+
+  /**
+    * Moves the semantic tokens following a local edit, until the server sends the new ones
+    *
+    * @param event The document event
+    */
+  private def shiftSemanticTokens(event: DocumentEvent): Unit = {
+    def endOf(text: CharSequence, startColumn: Int): (Int, Int) = {
+      val lines = StringUtil.countNewLines(text)
+      (lines, if (lines == 0) startColumn + text.length() else text.length() - StringUtil.lastIndexOf(text, '\n', 0, text.length()) - 1)
+    }
+
+    val document = event.getDocument
+    val startLine = document.getLineNumber(event.getOffset)
+    val startColumn = event.getOffset - document.getLineStartOffset(startLine)
+    val (oldLines, oldEndColumn) = endOf(event.getOldFragment, startColumn)
+    val (newLines, newEndColumn) = endOf(event.getNewFragment, startColumn)
+    semanticTokens.shift(startLine, startColumn, startLine + oldLines, oldEndColumn, newLines - oldLines, newEndColumn - oldEndColumn)
+  }
+
   /**
     * Notifies the server that the corresponding document has been closed
     */
   def documentClosed(): Unit = {
-    pool(() => {
-      if (isOpen) {
-        requestManager.didClose(new DidCloseTextDocumentParams(identifier))
-        isOpen = false
-        editorToManager.remove(editor)
-        uriToManager.remove(FileUtils.editorToURIString(editor))
-      } else {
-        LOG.warn("Editor " + identifier.getUri + " was already closed")
-      }
-    })
+    unregister()
+    wrapper.pool(() => closeDocument())
+  }
+
+  /**
+    * Removes this manager from the registries, if it is still the one registered for its editor and uri
+    */
+  private def unregister(): Unit = {
+    editorToManager.remove(editor, this)
+    uriToManager.remove(identifier.getUri, this)
   }
 
   def documentOpened(): Unit = {
-    pool(() => {
-      if (!editor.isDisposed) {
+    wrapper.pool(() => openDocument())
+  }
+
+  /**
+    * Notifies the server that the corresponding document has been opened, in the calling thread
+    */
+  def openDocument(): Unit = {
+    if (!editor.isDisposed) {
+      changesParams.synchronized {
         if (isOpen) {
           LOG.warn("Editor " + editor + " was already open")
         } else {
-          requestManager.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(identifier.getUri, wrapper.serverDefinition.id, {
-            version += 1
-            version - 1
-          }, editor.getDocument.getText)))
+          val text = editor.getDocument.getText
+          if (wrapper.takeOverTransientDocument(identifier.getUri)) {
+            //Opened without an editor meanwhile (e.g. to format it, with version 0) : its whole text is sent instead
+            version = math.max(version, 1)
+            changesParams.getTextDocument.setVersion({
+              version += 1
+              version - 1
+            })
+            changesParams.getContentChanges.add(new TextDocumentContentChangeEvent(text))
+            requestManager.didChange(changesParams)
+            changesParams.getContentChanges.clear()
+          } else {
+            requestManager.didOpen(new DidOpenTextDocumentParams(new TextDocumentItem(identifier.getUri, wrapper.serverDefinition.id, {
+              version += 1
+              version - 1
+            }, text)))
+          }
+          lastSyncedText = if (syncKind == TextDocumentSyncKind.Full) text else null
           isOpen = true
+          scheduleFoldingRanges()
+          scheduleDocumentSymbols()
+          codeLenses.foreach(c => c.scheduleCodeLenses())
         }
       }
-    })
+      wrapper.documentUsed(this)
+    }
+  }
+
+  /**
+    * Notifies the server that the document is closed, without disconnecting the editor (it will be reopened when needed)
+    */
+  def closeDocument(): Unit = {
+    changesParams.synchronized {
+      if (isOpen) {
+        flushFullSync()
+        requestManager.didClose(new DidCloseTextDocumentParams(identifier))
+        isOpen = false
+        lastSyncedText = null
+      }
+    }
+    wrapper.documentForgotten(this)
+  }
+
+  /**
+    * Opens the document on the server if it isn't, so that requests can be made on it
+    */
+  private def ensureOpen(): Unit = {
+    if (!isOpen) openDocument() else wrapper.documentUsed(this)
+  }
+
+  /**
+    * @return The request manager, after making sure the document is open on the server
+    */
+  private def server: RequestManager = {
+    ensureOpen()
+    flushFullSync()
+    requestManager
+  }
+
+  /**
+    * Schedules sending the whole text to a Full sync server, coalescing the changes made during FULL_SYNC_DELAY
+    * Must be called with the changesParams lock
+    */
+  private def scheduleFullSync(): Unit = {
+    if (pendingFullSync == null) {
+      val task: Runnable = () => wrapper.pool(() => flushFullSync())
+      pendingFullSync = LSPExecutors.scheduler.schedule(task, FULL_SYNC_DELAY, TimeUnit.MILLISECONDS)
+    } else coalescedChanges.incrementAndGet()
+  }
+
+  /**
+    * Sends the pending full sync now, if the text changed since the last synchronization
+    *
+    * @param force Whether to check the text even if no full sync is pending
+    */
+  private def flushFullSync(force: Boolean = false): Unit = {
+    changesParams.synchronized {
+      if (pendingFullSync != null || force) {
+        if (pendingFullSync != null) pendingFullSync.cancel(false)
+        pendingFullSync = null
+        if (isOpen && !editor.isDisposed) {
+          val text = editor.getDocument.getText
+          if (text != lastSyncedText) {
+            changesParams.getTextDocument.setVersion({
+              version += 1
+              version - 1
+            })
+            val changeEvent = new TextDocumentContentChangeEvent()
+            changeEvent.setText(text)
+            changesParams.getContentChanges.add(changeEvent)
+            requestManager.didChange(changesParams)
+            changesParams.getContentChanges.clear()
+            lastSyncedText = text
+            fullSyncCount.incrementAndGet()
+            fullSyncChars.addAndGet(text.length)
+            if (LOG.isDebugEnabled) LOG.debug(syncMetrics)
+          }
+        }
+      }
+    }
+  }
+
+  /**
+    * Changes the synchronization kind (e.g. when the server registers textDocument/didChange dynamically)
+    * The pending changes are sent with the previous kind first
+    *
+    * @param kind The new kind
+    */
+  def setSyncKind(kind: TextDocumentSyncKind): Unit = {
+    changesParams.synchronized {
+      if (kind != null && kind != syncKind) {
+        flushFullSync()
+        LOG.info("Synchronization of " + identifier.getUri + " changed from " + syncKind + " to " + kind)
+        syncKind = kind
+        lastSyncedText = null
+      }
+    }
+  }
+
+  /**
+    * @return Whether the editor is currently shown to the user, as last seen on the EDT (may be called from any thread)
+    */
+  def isVisible: Boolean = visible
+
+  /**
+    * Reads whether the editor is shown to the user, must be called on the EDT
+    *
+    * @return Whether the editor is shown
+    */
+  def updateVisibility(): Boolean = {
+    visible = !editor.isDisposed && editor.getComponent.isShowing
+    visible
   }
 
   /**
     * Notifies the server that the corresponding document has been saved
     */
   def documentSaved(): Unit = {
-    pool(() => {
-      if (!editor.isDisposed) {
+    wrapper.pool(() => {
+      flushFullSync()
+      if (!editor.isDisposed && isOpen) {
         val params: DidSaveTextDocumentParams = new DidSaveTextDocumentParams(identifier, editor.getDocument.getText)
         requestManager.didSave(params)
       }
@@ -615,8 +908,9 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     */
   //TODO Manual
   def willSave(): Unit = {
-    if (wrapper.isWillSaveWaitUntil && !needSave) willSaveWaitUntil() else pool(() => {
-      if (!editor.isDisposed) requestManager.willSave(new WillSaveTextDocumentParams(identifier, TextDocumentSaveReason.Manual))
+    if (wrapper.isWillSaveWaitUntil && !needSave) willSaveWaitUntil() else wrapper.pool(() => {
+      flushFullSync()
+      if (!editor.isDisposed && isOpen) requestManager.willSave(new WillSaveTextDocumentParams(identifier, TextDocumentSaveReason.Manual))
     })
   }
 
@@ -626,8 +920,9 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     */
   private def willSaveWaitUntil(): Unit = {
     if (wrapper.isWillSaveWaitUntil) {
-      pool(() => {
-        if (!editor.isDisposed) {
+      wrapper.pool(() => {
+        flushFullSync()
+        if (!editor.isDisposed && isOpen) {
           val params = new WillSaveTextDocumentParams(identifier, TextDocumentSaveReason.Manual)
           val future = requestManager.willSaveWaitUntil(params)
           if (future != null) {
@@ -674,7 +969,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     params.setContext(context)
     params.setPosition(DocumentUtils.offsetToLSPPos(editor, offset))
     params.setTextDocument(identifier)
-    val future = requestManager.references(params)
+    val future = server.references(params)
     if (future != null) {
       try {
         val references = future.get(REFERENCES_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -703,6 +998,11 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     }
   }
 
+  /**
+    * @return The current version of the document
+    */
+  def getVersion: Int = version
+
   /**
     * @return The current diagnostics highlights
     */
@@ -714,7 +1014,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     computableReadAction(() => {
       if (!editor.isDisposed) {
         val params = new TextDocumentPositionParams(identifier, DocumentUtils.offsetToLSPPos(editor, offset))
-        val future = requestManager.documentHighlight(params)
+        val future = server.documentHighlight(params)
         if (future != null) {
           try {
             val res = future.get(DOC_HIGHLIGHT_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -722,7 +1022,8 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
             if (res != null && !editor.isDisposed)
               res.asScala.map(dh => new TextRange(DocumentUtils.LSPPosToOffset(editor, dh.getRange.getStart), DocumentUtils.LSPPosToOffset(editor, dh.getRange.getEnd)))
                 .find(range => range.getStartOffset <= offset && offset <= range.getEndOffset)
-                .map(range => LSPPsiElement(editor.getDocument.getText(range), project, range.getStartOffset, range.getEndOffset, PsiDocumentManager.getInstance(project).getPsiFile(editor.getDocument)))
+                .flatMap(range => Option(PsiDocumentManager.getInstance(project).getPsiFile(editor.getDocument))
+                  .map(psiFile => LSPPsiElement(editor.getDocument.getText(range), range.getStartOffset, range.getEndOffset, psiFile)))
                 .orNull
             else null
           } catch {
@@ -748,7 +1049,8 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * @param e The mouse event
     */
   def mouseClicked(e: EditorMouseEvent): Unit = {
-    if (isCtrlDown) {
+    val linkOffset = if (isCtrlDown) editor.logicalPositionToOffset(editor.xyToLogicalPosition(e.getMouseEvent.getPoint)) else -1
+    if (isCtrlDown && !documentLinks.exists(l => l.click(linkOffset))) {
       createCtrlRange(DocumentUtils.logicalToLSPPos(editor.xyToLogicalPosition(e.getMouseEvent.getPoint), editor), null)
       if (ctrlRange != null) {
         val loc = ctrlRange.loc
@@ -798,7 +1100,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * Queries references and show a window with these references (click on a row to get to the location)
     */
   def showReferences(includeDefinition: Boolean = true): Unit = {
-    pool(() => {
+    wrapper.pool(() => {
       if (!editor.isDisposed) {
         val context = new ReferenceContext(includeDefinition)
         val params = new ReferenceParams(context)
@@ -807,7 +1109,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
           DocumentUtils.logicalToLSPPos(editor.getCaretModel.getCurrentCaret.getLogicalPosition, editor)
         })
         params.setPosition(serverPos)
-        val future = requestManager.references(params)
+        val future = server.references(params)
         if (future != null) {
           try {
             val references = future.get(REFERENCES_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -830,143 +1132,24 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     })
   }
 
-  private def showReferences(references: Iterable[Location]): Unit = {
-    var name: String = ""
-
-    /**
-      * Opens the editor and get the required infos
-      *
-      * @param file              The file of the editor
-      * @param fileEditorManager The fileEditorManager
-      * @param start             The starting position
-      * @param end               The ending position
-      * @return (StartOffset, EndOffset, Name (of the symbol), line (containing the symbol))
-      */
-    def openEditorAndGetOffsetsAndName(file: VirtualFile, fileEditorManager: FileEditorManager, start: Position, end: Position): (Int, Int, String, String) = {
-      val descriptor = new OpenFileDescriptor(project, file)
-      computableWriteAction(() => {
-        val newEditor = fileEditorManager.openTextEditor(descriptor, false)
-        val startOffset = DocumentUtils.LSPPosToOffset(newEditor, start)
-        val endOffset = DocumentUtils.LSPPosToOffset(newEditor, end)
-        val doc = newEditor.getDocument
-        val name = doc.getText(new TextRange(startOffset, endOffset))
-        fileEditorManager.closeFile(file)
-        (startOffset, endOffset, name, DocumentUtils.getLineText(newEditor, startOffset, endOffset))
-      })
-    }
-
-    val locations = references.map(l => {
-      val start = l.getRange.getStart
-      val end = l.getRange.getEnd
-      val uri = FileUtils.sanitizeURI(l.getUri)
-      var startOffset: Int = -1
-      var endOffset: Int = -1
-      var sample: String = ""
-
-      /**
-        * Opens the editor to retrieve the offsets, line, etc if needed
-        */
-      def manageUnopenedEditor(): Unit = {
-        val file = LocalFileSystem.getInstance().findFileByIoFile(new File(new URI(uri)))
-        val fileEditorManager = FileEditorManager.getInstance(project)
-        if (fileEditorManager.isFileOpen(file)) {
-          val editors = fileEditorManager.getAllEditors(file).collect { case t: TextEditor => t.getEditor }
-          if (editors.isEmpty) {
-            val (s, e, n, sa) = openEditorAndGetOffsetsAndName(file, fileEditorManager, start, end)
-            startOffset = s
-            endOffset = e
-            name = n
-            sample = sa
-          } else {
-            startOffset = DocumentUtils.LSPPosToOffset(editors.head, start)
-            endOffset = DocumentUtils.LSPPosToOffset(editors.head, end)
-          }
-        } else {
-          val (s, e, n, sa) = openEditorAndGetOffsetsAndName(file, fileEditorManager, start, end)
-          startOffset = s
-          endOffset = e
-          name = n
-          sample = sa
-        }
-      }
-
-      EditorEventManager.forUri(uri) match {
-        case Some(m) =>
-          try {
-            startOffset = DocumentUtils.LSPPosToOffset(m.editor, start)
-            endOffset = DocumentUtils.LSPPosToOffset(m.editor, end)
-            name = m.editor.getDocument.getText(new TextRange(startOffset, endOffset))
-            sample = DocumentUtils.getLineText(m.editor, startOffset, endOffset)
-          } catch {
-            case e: RuntimeException =>
-              LOG.warn(e)
-              manageUnopenedEditor()
-          }
-        case None =>
-          manageUnopenedEditor()
-      }
-
-      (uri, startOffset, endOffset, sample)
-    }).toArray
-
-    val caretPoint = editor.logicalPositionToXY(editor.getCaretModel.getCurrentCaret.getLogicalPosition)
-    showReferencesWindow(locations, name, caretPoint)
-  }
-
   /**
-    * Creates and shows the references window given the locations
+    * Shows the references in a popup at the caret
     *
-    * @param locations The locations : The file URI, the start offset, end offset, and the sample (line) containing the offsets
-    * @param name      The name of the symbol
-    * @param point     The point at which to show the window
-    */
-  private def showReferencesWindow(locations: Array[(String, Int, Int, String)], name: String, point: Point): Unit = {
-    LOG.info("Showing references for " + locations.mkString("\n"))
-    if (locations.isEmpty) {
-      invokeLater(() => if (!editor.isDisposed) currentHint = createAndShowEditorHint(editor, "No usages found", point))
+    * @param references The references
+    */
+  private def showReferences(references: Iterable[Location]): Unit = {
+    val caretPoint = editor.logicalPositionToXY(editor.getCaretModel.getCurrentCaret.getLogicalPosition)
+    LOG.info("Showing " + references.size + " references")
+    if (references.isEmpty) {
+      invokeLaterCoalesced(editor, "hint", () => if (!editor.isDisposed) currentHint = createAndShowEditorHint(editor, "No usages found", caretPoint))
     } else {
-      val frame = new JFrame()
-      frame.setTitle("Usages of " + name + " (" + locations.length + (if (locations.length > 1) " usages found)" else " usage found"))
-      val panel = new JPanel()
-      var row = 0
-      panel.setLayout(new GridLayoutManager(locations.length, 4, new Insets(10, 10, 10, 10), -1, -1))
-      locations.foreach(l => {
-        val listener = new MouseAdapter() {
-          override def mouseClicked(e: MouseEvent): Unit = {
-            val file = LocalFileSystem.getInstance().findFileByIoFile(new File(new URI(FileUtils.sanitizeURI(l._1))))
-            val descriptor = new OpenFileDescriptor(project, file, l._2)
-            writeAction(() => {
-              val newEditor = FileEditorManager.getInstance(project).openTextEditor(descriptor, true)
-              if (l._2 != -1 && l._3 != -1) newEditor.getSelectionModel.setSelection(l._2, l._3)
-            })
-            frame.setVisible(false)
-            frame.dispose()
-          }
-        }
-        val fileLabel = new JLabel(new File(new URI(FileUtils.sanitizeURI(l._1))).getName)
-        val spacer = new Spacer()
-        val offsetLabel = new JLabel(l._2.toString)
-        val sampleLabel = new JLabel("<html>" + l._4 + "</html>")
-        panel.add(fileLabel, new GridConstraints(row, 0, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false))
-        panel.add(spacer, new GridConstraints(row, 1, 1, 1, GridConstraints.ANCHOR_CENTER, GridConstraints.FILL_HORIZONTAL, GridConstraints.SIZEPOLICY_CAN_GROW, 1, null, null, null, 0, false))
-        panel.add(offsetLabel, new GridConstraints(row, 2, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false))
-        panel.add(sampleLabel, new GridConstraints(row, 3, 1, 1, GridConstraints.ANCHOR_WEST, GridConstraints.FILL_NONE, GridConstraints.SIZEPOLICY_FIXED, GridConstraints.SIZEPOLICY_FIXED, null, null, null, 0, false))
-        row += 1
-        //TODO refine
-        fileLabel.addMouseListener(listener)
-        spacer.addMouseListener(listener)
-        offsetLabel.addMouseListener(listener)
-        sampleLabel.addMouseListener(listener)
-      })
-      panel.setVisible(true)
-      frame.setContentPane(panel)
-
-      frame.setLocationRelativeTo(editor.getContentComponent)
-      frame.setLocation(point)
-      frame.pack()
-      frame.setAutoRequestFocus(true)
-      frame.setAlwaysOnTop(true)
-      frame.setVisible(true)
+      val offset = editor.getCaretModel.getCurrentCaret.getOffset
+      val name = references.map(l => (FileUtils.sanitizeURI(l.getUri), l.getRange)).collectFirst {
+        case (uri, range) if uri == identifier.getUri && range != null
+          && DocumentUtils.LSPPosToOffset(editor, range.getStart) <= offset && offset <= DocumentUtils.LSPPosToOffset(editor, range.getEnd) =>
+          editor.getDocument.getText(new TextRange(DocumentUtils.LSPPosToOffset(editor, range.getStart), DocumentUtils.LSPPosToOffset(editor, range.getEnd)))
+      }.getOrElse("")
+      ReferencesPopup.show(project, references.toSeq, name, new RelativePoint(editor.getContentComponent, caretPoint))
     }
   }
 
@@ -976,7 +1159,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
       if (!editor.isDisposed) {
         val corRange = if (range == null) {
           val params = new TextDocumentPositionParams(identifier, serverPos)
-          val future = requestManager.documentHighlight(params)
+          val future = server.documentHighlight(params)
           if (future != null) {
             try {
               val highlights = future.get(DOC_HIGHLIGHT_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -1001,7 +1184,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
         val startOffset = DocumentUtils.LSPPosToOffset(editor, corRange.getStart)
         val endOffset = DocumentUtils.LSPPosToOffset(editor, corRange.getEnd)
         val isDefinition = DocumentUtils.LSPPosToOffset(editor, loc.getRange.getStart) == startOffset
-        invokeLater(() => {
+        invokeLaterCoalesced(editor, "ctrlRange", () => {
           if (!editor.isDisposed) {
             if (ctrlRange != null) ctrlRange.dispose()
             ctrlRange = CtrlRangeMarker(loc, editor,
@@ -1021,7 +1204,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     */
   private def requestDefinition(position: Position): Location = {
     val params = new TextDocumentPositionParams(identifier, position)
-    val request = requestManager.definition(params)
+    val request = server.definition(params)
     if (request != null) {
       try {
         val definition = request.get(DEFINITION_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -1065,13 +1248,20 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
           if (lPos != null) {
             if (!isKeyPressed || isCtrlDown) {
               val offset = editor.logicalPositionToOffset(lPos)
-              if (isCtrlDown && curTime - ctrlTime > CTRL_THRES) {
+              val onLink = isCtrlDown && documentLinks.exists(l => l.mouseMoved(offset))
+              if (onLink) {
+                if (ctrlRange != null) {
+                  ctrlRange.dispose()
+                  ctrlRange = null
+                  editor.getContentComponent.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR))
+                }
+              } else if (isCtrlDown && curTime - ctrlTime > CTRL_THRES) {
                 if (ctrlRange == null || !ctrlRange.highlightContainsOffset(offset)) {
                   if (currentHint != null) currentHint.hide()
                   currentHint = null
                   if (ctrlRange != null) ctrlRange.dispose()
                   ctrlRange = null
-                  pool(() => requestAndShowDoc(curTime, lPos, e.getMouseEvent.getPoint))
+                  scheduleHover(0, () => requestAndShowDoc(curTime, lPos, e.getMouseEvent.getPoint))
                 } else if (ctrlRange.definitionContainsOffset(offset)) {
                   createAndShowEditorHint(editor, "Click to show usages", editor.offsetToXY(offset))
                 } else {
@@ -1102,7 +1292,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
       val caretPos = editor.getCaretModel.getLogicalPosition
       val pointPos = editor.logicalPositionToXY(caretPos)
       val currentTime = System.nanoTime()
-      pool(() => requestAndShowDoc(currentTime, caretPos, pointPos))
+      wrapper.pool(() => requestAndShowDoc(currentTime, caretPos, pointPos))
       predTime = currentTime
     } else {
       LOG.warn("Not same editor!")
@@ -1118,113 +1308,113 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     */
   private def requestAndShowDoc(curTime: Long, editorPos: LogicalPosition, point: Point): Unit = {
     val serverPos = computableReadAction[Position](() => DocumentUtils.logicalToLSPPos(editorPos, editor))
-    val request = requestManager.hover(new TextDocumentPositionParams(identifier, serverPos))
-    if (request != null) {
-      try {
-        val hover = request.get(HOVER_TIMEOUT, TimeUnit.MILLISECONDS)
-        wrapper.notifySuccess(Timeouts.HOVER)
-        if (hover != null) {
-          val string = HoverHandler.getHoverString(hover)
-          if (string != null && string != "") {
-            if (isCtrlDown) {
-              invokeLater(() => if (!editor.isDisposed) currentHint = createAndShowEditorHint(editor, string, point, flags = HintManager.HIDE_BY_OTHER_HINT))
-              createCtrlRange(serverPos, hover.getRange)
-            } else {
-              invokeLater(() => if (!editor.isDisposed) currentHint = createAndShowEditorHint(editor, string, point))
-            }
-          } else {
-            LOG.warn("Hover string returned is null for file " + identifier.getUri + " and pos (" + serverPos.getLine + ";" + serverPos.getCharacter + ")")
-          }
+    val params = new TextDocumentPositionParams(identifier, serverPos)
+    batcher.request(Timeouts.HOVER, HOVER_TIMEOUT, r => r.hover(params))(hover => {
+      val string = HoverHandler.getHoverString(hover)
+      if (string != null && string != "") {
+        if (isCtrlDown) {
+          currentHint = createAndShowEditorHint(editor, string, point, flags = HintManager.HIDE_BY_OTHER_HINT)
+          wrapper.pool(() => createCtrlRange(serverPos, hover.getRange))
         } else {
-          LOG.warn("Hover is null for file " + identifier.getUri + " and pos (" + serverPos.getLine + ";" + serverPos.getCharacter + ")")
+          currentHint = createAndShowEditorHint(editor, string, point)
         }
-      } catch {
-        case e: TimeoutException =>
-          LOG.warn(e)
-          wrapper.notifyFailure(Timeouts.HOVER)
-        case e@(_: java.io.IOException | _: JsonRpcException | _: ExecutionException) =>
-          LOG.warn(e)
-          wrapper.crashed(e.asInstanceOf[Exception])
+      } else {
+        LOG.warn("Hover string returned is null for file " + identifier.getUri + " and pos (" + serverPos.getLine + ";" + serverPos.getCharacter + ")")
       }
-    }
-
-
+    })
   }
 
   /**
     * Returns the references given the position of the word to search for
-    * Must be called from main thread
+    * Files which are not opened are read from their Document, no editor is opened
     *
     * @param offset The offset in the editor
     * @return An array of PsiElement
     */
-  def references(offset: Int, getOriginalElement: Boolean = false, close: Boolean = false): (Iterable[PsiElement], Iterable[VirtualFile]) = {
+  def references(offset: Int, getOriginalElement: Boolean = false): Iterable[PsiElement] = {
     val lspPos = DocumentUtils.offsetToLSPPos(editor, offset)
     val params = new ReferenceParams(new ReferenceContext(getOriginalElement))
     params.setPosition(lspPos)
     params.setTextDocument(identifier)
-    val request = requestManager.references(params)
+    val request = server.references(params)
     if (request != null) {
       try {
         val res = request.get(REFERENCES_TIMEOUT, TimeUnit.MILLISECONDS)
         wrapper.notifySuccess(Timeouts.REFERENCES)
         if (res != null) {
-          val openedEditors = mutable.ListBuffer[VirtualFile]()
-          val elements = res.asScala.map(l => {
-            val start = l.getRange.getStart
-            val end = l.getRange.getEnd
-            val uri = FileUtils.sanitizeURI(l.getUri)
-            val file = FileUtils.virtualFileFromURI(uri)
-            var curEditor = FileUtils.editorFromUri(uri, project)
-            if (curEditor == null) {
-              val descriptor = new OpenFileDescriptor(project, file)
-              curEditor = computableWriteAction(() => FileEditorManager.getInstance(project).openTextEditor(descriptor, false))
-              openedEditors += file
-            }
-            val logicalStart = DocumentUtils.LSPPosToOffset(curEditor, start)
-            val logicalEnd = DocumentUtils.LSPPosToOffset(curEditor, end)
-            val name = curEditor.getDocument.getText(new TextRange(logicalStart, logicalEnd))
-            LSPPsiElement(name, project, logicalStart, logicalEnd, PsiDocumentManager.getInstance(project).getPsiFile(curEditor.getDocument))
-              .asInstanceOf[PsiElement]
-          })
-          if (close) {
-            writeAction(() => openedEditors.foreach(f => FileEditorManager.getInstance(project).closeFile(f)))
-            openedEditors.clear()
-          }
-          (elements, openedEditors.clone())
+          locationsToElements(res.asScala)
         } else {
-          (Seq.empty, Seq.empty)
+          Seq.empty
         }
       } catch {
         case e: TimeoutException =>
           LOG.warn(e)
           wrapper.notifyFailure(Timeouts.REFERENCES)
-          (Seq.empty, Seq.empty)
+          Seq.empty
         case e@(_: java.io.IOException | _: JsonRpcException | _: ExecutionException) =>
           LOG.warn(e)
           wrapper.crashed(e.asInstanceOf[Exception])
-          (Seq.empty, Seq.empty)
+          Seq.empty
       }
-    } else (Seq.empty, Seq.empty)
+    } else Seq.empty
+  }
+
+  /**
+    * Transforms locations to LSPPsiElements using the Documents of the files
+    * The conversion runs on the calling thread in a single read action : it only reads Documents, and the caller may
+    * already hold a read lock, so waiting on read actions of other threads could deadlock with a pending write action
+    *
+    * @param locations The locations
+    * @return The elements
+    */
+  private def locationsToElements(locations: Iterable[Location]): Iterable[PsiElement] = {
+    computableReadAction[Seq[PsiElement]](() => {
+      locations.groupBy(l => FileUtils.sanitizeURI(l.getUri)).toList.flatMap(t => {
+        val (uri, fileLocations) = t
+        val file = FileUtils.virtualFileFromURI(uri)
+        val doc = if (file != null) FileDocumentManager.getInstance().getDocument(file) else null
+        val psiFile = if (file != null) PsiManager.getInstance(project).findFile(file) else null
+        if (doc == null || psiFile == null) {
+          LOG.warn("No document found for " + uri)
+          Seq.empty
+        } else {
+          fileLocations.map(l => {
+            val start = DocumentUtils.LSPPosToOffset(doc, l.getRange.getStart)
+            val end = DocumentUtils.LSPPosToOffset(doc, l.getRange.getEnd)
+            LSPPsiElement(doc.getText(new TextRange(start, end)), start, end, psiFile).asInstanceOf[PsiElement]
+          })
+        }
+      })
+    })
   }
 
   /**
     * Reformat the whole document
     */
   def reformat(closeAfter: Boolean = false): Unit = {
-    pool(() => {
+    wrapper.pool(() => {
       if (!editor.isDisposed) {
         val params = new DocumentFormattingParams()
         params.setTextDocument(identifier)
         val options = new FormattingOptions()
         params.setOptions(options)
-        val request = requestManager.formatting(params)
+        val request = server.formatting(params)
         if (request != null) request.thenAccept(formatting => if (formatting != null) invokeLater(() =>
           applyEdit(edits = formatting.asScala, name = "Reformat document", closeAfter = closeAfter)))
       }
     })
   }
 
+  /**
+    * Requests the formatting of the whole document, without applying it
+    *
+    * @param options The formatting options
+    * @return The edits request, or null if the server doesn't support formatting
+    */
+  def formatting(options: FormattingOptions): CompletableFuture[java.util.List[_ <: TextEdit]] = {
+    server.formatting(new DocumentFormattingParams(identifier, options))
+  }
+
   /**
     * Applies the given edits to the document
     *
@@ -1266,20 +1456,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
       val document = editor.getDocument
       if (document.isWritable) {
         () => {
-          edits.foreach(edit => {
-            val text = edit.getNewText
-            val range = edit.getRange
-            val start = DocumentUtils.LSPPosToOffset(editor, range.getStart)
-            val end = DocumentUtils.LSPPosToOffset(editor, range.getEnd)
-            if (text == "" || text == null) {
-              document.deleteString(start, end)
-            } else if (end - start <= 0) {
-              document.insertString(start, text)
-            } else {
-              document.replaceString(start, end, text)
-            }
-          })
-          saveDocument()
+          if (DocumentUtils.applyEdits(document, edits)) saveDocument()
         }
       } else {
         LOG.warn("Document is not writable")
@@ -1299,7 +1476,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * Reformat the text currently selected in the editor
     */
   def reformatSelection(): Unit = {
-    pool(() => {
+    wrapper.pool(() => {
       if (!editor.isDisposed) {
         val params = new DocumentRangeFormattingParams()
         params.setTextDocument(identifier)
@@ -1311,7 +1488,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
         params.setRange(new Range(startingPos, endPos))
         val options = new FormattingOptions() //TODO
         params.setOptions(options)
-        val request = requestManager.rangeFormatting(params)
+        val request = server.rangeFormatting(params)
         if (request != null)
           request.thenAccept(formatting =>
             if (formatting != null) invokeLater(() =>
@@ -1329,6 +1506,8 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     editor.addEditorMouseMotionListener(mouseMotionListener)
     editor.getDocument.addDocumentListener(documentListener)
     editor.getSelectionModel.addSelectionListener(selectionListener)
+    editor.getComponent.addHierarchyListener(visibilityListener)
+    codeLenses.foreach(c => c.registerListeners())
   }
 
   /**
@@ -1339,6 +1518,13 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     editor.getDocument.removeDocumentListener(documentListener)
     editor.removeEditorMouseListener(mouseListener)
     editor.getSelectionModel.removeSelectionListener(selectionListener)
+    editor.getComponent.removeHierarchyListener(visibilityListener)
+    if (pendingHover != null) pendingHover.cancel(false)
+    if (pendingSelectionHighlight != null) pendingSelectionHighlight.cancel(false)
+    if (pendingFolding != null) pendingFolding.cancel(false)
+    if (pendingSymbols != null) pendingSymbols.cancel(false)
+    codeLenses.foreach(c => c.removeListeners())
+    documentLinks.foreach(l => invokeLater(() => l.dispose()))
   }
 
   /**
@@ -1347,14 +1533,13 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * @param renameTo The new name
     */
   def rename(renameTo: String, offset: Int = editor.getCaretModel.getCurrentCaret.getOffset): Unit = {
-    pool(() => {
+    wrapper.pool(() => {
       val servPos = DocumentUtils.offsetToLSPPos(editor, offset)
       if (!editor.isDisposed) {
         val params = new RenameParams(identifier, servPos, renameTo)
-        val request = requestManager.rename(params)
+        val request = server.rename(params)
         if (request != null) request.thenAccept(res => {
-          WorkspaceEditHandler.applyEdit(res, "Rename to " + renameTo, LSPRenameProcessor.getEditors.toList)
-          LSPRenameProcessor.clearEditors()
+          WorkspaceEditHandler.applyEdit(res, "Rename to " + renameTo)
         })
       }
     })
@@ -1371,7 +1556,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     if (editor == this.editor) {
       if (offset != -1) {
         val serverPos = DocumentUtils.offsetToLSPPos(editor, offset)
-        val request = requestManager.hover(new TextDocumentPositionParams(identifier, serverPos))
+        val request = server.hover(new TextDocumentPositionParams(identifier, serverPos))
         if (request != null) {
           try {
             val response = request.get(HOVER_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -1408,47 +1593,64 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
   def selectionChanged(e: SelectionEvent): Unit = {
     if (CodeInsightSettings.getInstance().HIGHLIGHT_IDENTIFIER_UNDER_CARET) {
       if (e.getEditor == editor) {
-        selectedSymbHighlights.foreach(h => editor.getMarkupModel.removeHighlighter(h))
-        selectedSymbHighlights.clear()
+        if (pendingSelectionHighlight != null) pendingSelectionHighlight.cancel(false)
+        val stamp = editor.getDocument.getModificationStamp
+        if (selectionHighlightsStamp != stamp) {
+          selectionHighlightsCache.clear()
+          selectionHighlightsStamp = stamp
+          highlightedSymbol = null
+        }
         if (editor.getSelectionModel.hasSelection) {
-          val ideRange = e.getNewRange
-          val LSPPos = DocumentUtils.offsetToLSPPos(editor, ideRange.getStartOffset)
-          val request = requestManager.documentHighlight(new TextDocumentPositionParams(identifier, LSPPos))
-          if (request != null) {
-            pool(() => {
-              if (!editor.isDisposed) {
-                try {
-                  val resp = request.get(DOC_HIGHLIGHT_TIMEOUT, TimeUnit.MILLISECONDS)
-                  wrapper.notifySuccess(Timeouts.DOC_HIGHLIGHT)
-                  if (resp != null) {
-                    invokeLater(() => resp.asScala.foreach(dh => {
-                      if (!editor.isDisposed) {
-                        val range = dh.getRange
-                        val kind = dh.getKind
-                        val startOffset = DocumentUtils.LSPPosToOffset(editor, range.getStart)
-                        val endOffset = DocumentUtils.LSPPosToOffset(editor, range.getEnd)
-                        val colorScheme = editor.getColorsScheme
-                        val highlight = editor.getMarkupModel.addRangeHighlighter(startOffset, endOffset, HighlighterLayer.SELECTION - 1, colorScheme.getAttributes(EditorColors.IDENTIFIER_UNDER_CARET_ATTRIBUTES), HighlighterTargetArea.EXACT_RANGE)
-                        selectedSymbHighlights.add(highlight)
-                      }
-                    }))
+          val offset = e.getNewRange.getStartOffset
+          if (highlightedSymbol == null || !highlightedSymbol.containsOffset(offset)) {
+            clearSelectionHighlights()
+            selectionHighlightsCache.find(c => c._1.containsOffset(offset)) match {
+              case Some((symbol, ranges)) => showSelectionHighlights(symbol, ranges)
+              case None =>
+                val params = new TextDocumentPositionParams(identifier, DocumentUtils.offsetToLSPPos(editor, offset))
+                val trigger: Runnable = () => batcher.request(Timeouts.DOC_HIGHLIGHT, DOC_HIGHLIGHT_TIMEOUT, r => r.documentHighlight(params))(resp => {
+                  val ranges = resp.asScala.toList.map(dh => new TextRange(DocumentUtils.LSPPosToOffset(editor, dh.getRange.getStart), DocumentUtils.LSPPosToOffset(editor, dh.getRange.getEnd)))
+                  val symbol = ranges.find(r => r.containsOffset(offset)).getOrElse(new TextRange(offset, offset))
+                  if (selectionHighlightsStamp == editor.getDocument.getModificationStamp) {
+                    if (selectionHighlightsCache.size >= MAX_CACHED_HIGHLIGHTS) selectionHighlightsCache.remove(selectionHighlightsCache.head._1)
+                    selectionHighlightsCache.put(symbol, ranges)
                   }
-                } catch {
-                  case e: TimeoutException =>
-                    LOG.warn(e)
-                    wrapper.notifyFailure(Timeouts.DOC_HIGHLIGHT)
-                  case e@(_: java.io.IOException | _: JsonRpcException | _: ExecutionException) =>
-                    LOG.warn(e)
-                    wrapper.crashed(e.asInstanceOf[Exception])
-                }
-              }
-            })
+                  val selection = editor.getSelectionModel
+                  if (selection.hasSelection && symbol.containsOffset(selection.getSelectionStart)) {
+                    clearSelectionHighlights()
+                    showSelectionHighlights(symbol, ranges)
+                  }
+                })
+                pendingSelectionHighlight = LSPExecutors.scheduler.schedule(trigger, SELECTION_HIGHLIGHT_DELAY, TimeUnit.MILLISECONDS)
+            }
           }
+        } else {
+          clearSelectionHighlights()
         }
       }
     }
   }
 
+  /**
+    * Paints the highlights of the selected symbol
+    *
+    * @param symbol The range of the selected symbol
+    * @param ranges The ranges to highlight
+    */
+  private def showSelectionHighlights(symbol: TextRange, ranges: Seq[TextRange]): Unit = {
+    val markupModel = editor.getMarkupModel
+    val attributes = editor.getColorsScheme.getAttributes(EditorColors.IDENTIFIER_UNDER_CARET_ATTRIBUTES)
+    ranges.foreach(range => selectedSymbHighlights.add(markupModel.addRangeHighlighter(range.getStartOffset, range.getEndOffset,
+      HighlighterLayer.SELECTION - 1, attributes, HighlighterTargetArea.EXACT_RANGE)))
+    highlightedSymbol = symbol
+  }
+
+  private def clearSelectionHighlights(): Unit = {
+    selectedSymbHighlights.foreach(h => editor.getMarkupModel.removeHighlighter(h))
+    selectedSymbHighlights.clear()
+    highlightedSymbol = null
+  }
+
   /**
     * Tells the manager that the mouse is in the editor
     */
@@ -1464,17 +1666,32 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     isCtrlDown = false
   }
 
-  def semanticHighlighting(lines: Seq[SemanticHighlightingInformation]): Unit = {
-    val (removeHighlighting, addHighlighting) = lines.partition(s => s.getTokens == null || s.getTokens.nonEmpty)
-    removeHighlighting.foreach(l => {
-      val line = l.getLine
-      //Remove highlighting
-    })
-    addHighlighting.foreach(l => {
-      val line = l.getLine
-      val tokens = l.getTokens
-      //Add highlighting
-    })
+  /**
+    * Applies the semantic highlighting sent by the server, repainting only the lines it contains
+    * The tokens are decoded on the calling thread, the highlights are painted on the EDT
+    *
+    * @param serverVersion The version of the document the tokens were computed for (may be null)
+    * @param lines         The tokens of the lines
+    */
+  def semanticHighlighting(serverVersion: Integer, lines: Seq[SemanticHighlightingInformation]): Unit = {
+    if (semanticTokens != null) {
+      val decoded = lines.map(l => (l.getLine, SemanticHighlightingHandler.decode(l.getTokens)))
+      invokeLaterCoalesced(() => if (!editor.isDisposed && isSynchronizedWith(serverVersion)) semanticTokens.update(decoded))
+    }
+  }
+
+  /**
+    * For Full sync servers, the version only changes when the text is flushed : a pending full sync means that the
+    * local text changed since the last version was sent
+    *
+    * @param serverVersion The version of the document a result was computed for (may be null)
+    * @return Whether the local text is the one the server saw
+    */
+  private def isSynchronizedWith(serverVersion: Integer): Boolean = {
+    changesParams.synchronized {
+      //The last version sent to the server is version - 1
+      pendingFullSync == null && (serverVersion == null || serverVersion.intValue() == version - 1)
+    }
   }
 
   /**
@@ -1483,14 +1700,14 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
     * @param c The trigger character
     */
   private def onTypeFormatting(c: String): Unit = {
-    pool(() => {
+    wrapper.pool(() => {
       if (!editor.isDisposed) {
         val params = new DocumentOnTypeFormattingParams()
         params.setCh(c)
         params.setPosition(DocumentUtils.logicalToLSPPos(editor.getCaretModel.getCurrentCaret.getLogicalPosition, editor))
         params.setTextDocument(identifier)
         params.setOptions(new FormattingOptions())
-        val future = requestManager.onTypeFormatting(params)
+        val future = server.onTypeFormatting(params)
         if (future != null) {
           try {
             val edits = future.get(FORMATTING_TIMEOUT, TimeUnit.MILLISECONDS)
@@ -1534,7 +1751,7 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
   }
 
   /**
-    * Schedule the documentation using the Timer
+    * Schedules the documentation on the shared scheduler, replacing the documentation previously scheduled for this editor
     *
     * @param time      The current time
     * @param editorPos The position in the editor
@@ -1543,30 +1760,35 @@ class EditorEventManager(val editor: Editor, val mouseListener: EditorMouseListe
   private def scheduleDocumentation(time: Long, editorPos: LogicalPosition, point: Point): Unit = {
     if (editorPos != null) {
       if (time - predTime > SCHEDULE_THRES) {
-        try {
-          hoverThread.schedule(new TimerTask {
-            override def run(): Unit = {
-              if (!editor.isDisposed) {
-                val curTime = System.nanoTime()
-                if (curTime - predTime > HOVER_TIME_THRES && mouseInEditor && editor.getContentComponent.hasFocus && (!isKeyPressed || isCtrlDown)) {
-                  val editorOffset = computableReadAction[Int](() => editor.logicalPositionToOffset(editorPos))
-                  val inHighlights = diagnosticsHighlights.filter(diag =>
-                    diag.rangeHighlighter.getStartOffset <= editorOffset &&
-                      editorOffset <= diag.rangeHighlighter.getEndOffset)
-                  if (inHighlights.isEmpty || isCtrlDown) {
-                    requestAndShowDoc(curTime, editorPos, point)
-                  }
-                }
+        scheduleHover(POPUP_THRES, () => {
+          if (!editor.isDisposed) {
+            val curTime = System.nanoTime()
+            if (curTime - predTime > HOVER_TIME_THRES && mouseInEditor && editor.getContentComponent.hasFocus && (!isKeyPressed || isCtrlDown)) {
+              val editorOffset = computableReadAction[Int](() => editor.logicalPositionToOffset(editorPos))
+              val inHighlights = diagnosticsHighlights.filter(diag =>
+                diag.rangeHighlighter.getStartOffset <= editorOffset &&
+                  editorOffset <= diag.rangeHighlighter.getEndOffset)
+              if (inHighlights.isEmpty || isCtrlDown) {
+                requestAndShowDoc(curTime, editorPos, point)
               }
             }
-          }, POPUP_THRES)
-        } catch {
-          case e: Exception =>
-            hoverThread = new Timer("Hover", true) //Restart Timer if it crashes
-            LOG.warn(e)
-            LOG.warn("Hover timer reset")
-        }
+          }
+        })
       }
     }
   }
+
+  /**
+    * Runs a hover task after a delay, cancelling the hover task still pending for this editor
+    * The task itself runs on the executor of the server, the shared scheduler only triggers it
+    *
+    * @param delay The delay, in ms
+    * @param task  The task
+    */
+  private def scheduleHover(delay: Long, task: () => Unit): Unit = {
+    val previous = pendingHover
+    if (previous != null) previous.cancel(false)
+    val trigger: Runnable = () => wrapper.pool(() => task())
+    pendingHover = LSPExecutors.scheduler.schedule(trigger, delay, TimeUnit.MILLISECONDS)
+  }
 }
@@ -0,0 +1,32 @@
+package com.github.gtache.lsp.editor
+
+import com.intellij.openapi.editor.RangeMarker
+import javax.swing.Icon
+import org.eclipse.lsp4j.SymbolKind
+
+/**
+  * A symbol of a document, as sent by textDocument/documentSymbol
+  * The position is kept as a RangeMarker so that it follows the edits made until the next response
+  *
+  * @param name     The name of the symbol
+  * @param detail   The detail of the symbol (e.g. a signature), may be null
+  * @param kind     The kind of the symbol
+  * @param icon     The icon of the symbol
+  * @param marker   The marker of the range of the name of the symbol
+  * @param children The symbols contained in this one
+  */
+case class LSPDocumentSymbol(name: String, detail: String, kind: SymbolKind, icon: Icon, marker: RangeMarker, children: Seq[LSPDocumentSymbol]) {
+
+  /**
+    * @return This symbol and all the symbols it contains
+    */
+  def flatten: Seq[LSPDocumentSymbol] = this +: children.flatMap(c => c.flatten)
+
+  /**
+    * Disposes the markers of this symbol and its children
+    */
+  def dispose(): Unit = {
+    marker.dispose()
+    children.foreach(c => c.dispose())
+  }
+}
@@ -0,0 +1,168 @@
+package com.github.gtache.lsp.editor
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.github.gtache.lsp.utils.{ApplicationUtils, FileUtils}
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.fileEditor.{FileDocumentManager, OpenFileDescriptor}
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.ui.popup.JBPopupFactory
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.ui.awt.RelativePoint
+import com.intellij.ui.components.JBList
+import com.intellij.ui.{ColoredListCellRenderer, SimpleTextAttributes}
+import javax.swing.{JList, ListSelectionModel}
+import org.eclipse.lsp4j.{Location, Position, Range}
+
+import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
+
+/**
+  * A popup listing references, which stays fast for large result sets
+  * The list only creates the rows as they are shown, and the line of a reference is only read (in the background,
+  * from the line index of its document) once its row becomes visible
+  */
+object ReferencesPopup {
+
+  private val LOG: Logger = Logger.getInstance(ReferencesPopup.getClass)
+  private val MAX_PREVIEW_LENGTH = 150 //Number of characters of the line shown around the reference
+  private val VISIBLE_ROWS = 20
+
+  /**
+    * Shows the references
+    *
+    * @param project    The project
+    * @param references The references
+    * @param name       The name of the symbol
+    * @param point      The point at which to show the popup
+    */
+  def show(project: Project, references: Seq[Location], name: String, point: RelativePoint): Unit = {
+    val rows = references.filter(l => l.getUri != null && l.getRange != null)
+      .map(l => new ReferenceRow(FileUtils.sanitizeURI(l.getUri), l))
+      .sortBy(r => (r.uri, r.line, r.column))
+    val list = new JBList[ReferenceRow](rows.asJava)
+    val loader = new PreviewLoader(list)
+    list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION)
+    //A prototype avoids measuring every row
+    list.setPrototypeCellValue(if (rows.nonEmpty) prototype(rows) else null)
+    list.setVisibleRowCount(math.min(VISIBLE_ROWS, rows.size))
+    list.setCellRenderer(new ColoredListCellRenderer[ReferenceRow]() {
+      override def customizeCellRenderer(list: JList[_ <: ReferenceRow], row: ReferenceRow, index: Int, selected: Boolean, hasFocus: Boolean): Unit = {
+        append(row.fileName, SimpleTextAttributes.REGULAR_ATTRIBUTES)
+        append(":" + (row.line + 1) + "  ", SimpleTextAttributes.GRAYED_ATTRIBUTES)
+        val preview = row.preview
+        if (preview == null) {
+          loader.request(row)
+          append("...", SimpleTextAttributes.GRAYED_ATTRIBUTES)
+        } else {
+          append(preview._1, SimpleTextAttributes.REGULAR_ATTRIBUTES)
+          append(preview._2, SimpleTextAttributes.REGULAR_BOLD_ATTRIBUTES)
+          append(preview._3, SimpleTextAttributes.REGULAR_ATTRIBUTES)
+        }
+      }
+    })
+    val title = "Usages of " + name + " (" + rows.size + (if (rows.size > 1) " usages found)" else " usage found)")
+    JBPopupFactory.getInstance().createListPopupBuilder(list)
+      .setTitle(title)
+      .setMovable(true)
+      .setResizable(true)
+      .setItemChoosenCallback(() => {
+        val row = list.getSelectedValue
+        if (row != null) {
+          val file = FileUtils.URIToVFS(row.uri)
+          if (file != null) new OpenFileDescriptor(project, file, row.line, row.column).navigate(true)
+          else LOG.warn("No file for " + row.uri)
+        }
+      })
+      .createPopup()
+      .show(point)
+  }
+
+  /**
+    * Returns a row as wide as the widest row can be once its preview is loaded (longest file name and line number,
+    * preview of MAX_PREVIEW_LENGTH characters), so that the loaded previews aren't clipped
+    *
+    * @param rows The rows (not empty)
+    * @return The prototype row
+    */
+  private def prototype(rows: Seq[ReferenceRow]): ReferenceRow = {
+    val longest = rows.maxBy(r => r.fileName.length)
+    val position = new Position(rows.map(r => r.line).max, 0)
+    val row = new ReferenceRow(longest.uri, new Location(longest.uri, new Range(position, position)))
+    row.preview = ("", "", "x" * MAX_PREVIEW_LENGTH)
+    row.requested = true
+    row
+  }
+
+  /**
+    * A reference
+    *
+    * @param uri      The sanitized uri of the file
+    * @param location The location
+    */
+  private class ReferenceRow(val uri: String, location: Location) {
+    val line: Int = location.getRange.getStart.getLine
+    val column: Int = location.getRange.getStart.getCharacter
+    val endLine: Int = location.getRange.getEnd.getLine
+    val endColumn: Int = location.getRange.getEnd.getCharacter
+    val fileName: String = uri.substring(uri.lastIndexOf(FileUtils.URI_PATH_SEP) + 1).replace(FileUtils.SPACE_ENCODED, " ")
+    //The text before the reference, the reference and the text after it, on the line of the reference
+    @volatile var preview: (String, String, String) = _
+    @volatile var requested: Boolean = false
+  }
+
+  /**
+    * Reads the lines of the rows in the background, then repaints the list
+    *
+    * @param list The list
+    */
+  private class PreviewLoader(list: JList[ReferenceRow]) {
+    private val queue: ConcurrentLinkedQueue[ReferenceRow] = new ConcurrentLinkedQueue[ReferenceRow]()
+    private val scheduled: AtomicBoolean = new AtomicBoolean(false)
+    private val documents: TrieMap[String, Option[Document]] = TrieMap()
+
+    /**
+      * @param row A row to load (on the EDT)
+      */
+    def request(row: ReferenceRow): Unit = {
+      if (!row.requested) {
+        row.requested = true
+        queue.add(row)
+        if (scheduled.compareAndSet(false, true)) ApplicationUtils.pool(() => load())
+      }
+    }
+
+    private def load(): Unit = {
+      scheduled.set(false)
+      var row = queue.poll()
+      while (row != null) {
+        val current = row
+        val document = documents.getOrElseUpdate(current.uri, {
+          val file: VirtualFile = FileUtils.URIToVFS(current.uri)
+          if (file != null) Option(ApplicationUtils.computableReadAction(() => FileDocumentManager.getInstance().getDocument(file))) else None
+        })
+        current.preview = document.fold(("", "", ""))(d => ApplicationUtils.computableReadAction(() => preview(d, current)))
+        row = queue.poll()
+      }
+      ApplicationUtils.invokeLater(() => list.repaint())
+    }
+
+    private def preview(document: Document, row: ReferenceRow): (String, String, String) = {
+      if (row.line >= document.getLineCount) ("", "", "") else {
+        val lineStart = document.getLineStartOffset(row.line)
+        val lineEnd = document.getLineEndOffset(row.line)
+        val text = document.getImmutableCharSequence
+        val start = math.min(lineStart + math.max(0, row.column), lineEnd)
+        val end = if (row.endLine == row.line) math.max(start, math.min(lineStart + row.endColumn, lineEnd)) else lineEnd
+        var from = lineStart
+        while (from < start && Character.isWhitespace(text.charAt(from))) from += 1
+        from = math.max(from, start - MAX_PREVIEW_LENGTH / 2)
+        val to = math.min(lineEnd, math.max(end, from + MAX_PREVIEW_LENGTH))
+        (text.subSequence(from, start).toString, text.subSequence(start, end).toString, text.subSequence(end, to).toString)
+      }
+    }
+  }
+
+}
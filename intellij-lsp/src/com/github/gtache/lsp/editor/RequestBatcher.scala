@@ -0,0 +1,130 @@
+package com.github.gtache.lsp.editor
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.{CancellationException, CompletableFuture, CompletionException, ConcurrentLinkedQueue, ExecutionException, TimeUnit}
+
+import com.github.gtache.lsp.client.languageserver.requestmanager.RequestManager
+import com.github.gtache.lsp.client.languageserver.wrapper.LanguageServerWrapperImpl
+import com.github.gtache.lsp.requests.Timeouts
+import com.github.gtache.lsp.utils.{ApplicationUtils, LSPExecutors}
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.Editor
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Collects the requests issued for a document during the same tick and sends them back-to-back for the current state
+  * of the document using a single task on the executor of the server
+  * The task doesn't wait for the results : each result is dispatched to the EDT (with the other UI updates) as soon as
+  * it arrives, so that a slow request doesn't hold back the others, and the timeouts are enforced by the LSP scheduler
+  * Requests issued before a change of the document are dropped, as well as results arriving after a change
+  * The modification stamp of the document is used rather than the version, which lags behind for Full sync servers
+  *
+  * @param editor   The editor of the document
+  * @param wrapper  The wrapper of the server
+  * @param requests Returns the RequestManager, with the document opened and synchronized
+  */
+class RequestBatcher(editor: Editor, wrapper: LanguageServerWrapperImpl, requests: () => RequestManager) {
+
+  import RequestBatcher._
+
+  private val queue: ConcurrentLinkedQueue[Pending[_]] = new ConcurrentLinkedQueue[Pending[_]]()
+  private val scheduled: AtomicBoolean = new AtomicBoolean(false)
+
+  /**
+    * Queues a request, which will be sent with the other requests of the same tick
+    *
+    * @param kind     The kind of request (for the timeouts notifications)
+    * @param timeout  The timeout of the request, in ms
+    * @param send     The function sending the request
+    * @param onResult The function to call on the EDT with the (non-null) result
+    * @tparam T The type of the result
+    */
+  def request[T](kind: Timeouts, timeout: Int, send: RequestManager => CompletableFuture[T])(onResult: T => Unit): Unit = {
+    queue.add(Pending(stamp, kind, timeout, send, onResult))
+    if (scheduled.compareAndSet(false, true)) {
+      wrapper.pool(() => flush())
+    }
+  }
+
+  /**
+    * Sends all the queued requests for the current state of the document
+    */
+  private def flush(): Unit = {
+    scheduled.set(false)
+    val pendings = ArrayBuffer[Pending[_]]()
+    var next = queue.poll()
+    while (next != null) {
+      pendings += next
+      next = queue.poll()
+    }
+    val current = stamp
+    val (valid, stale) = pendings.partition(p => p.stamp == current)
+    if (stale.nonEmpty) LOG.debug("Dropped " + stale.size + " requests for an outdated document")
+    if (valid.nonEmpty && !editor.isDisposed) {
+      val requestManager = requests()
+      if (requestManager != null) valid.foreach(p => p.start(requestManager, current))
+    }
+  }
+
+  private def stamp: Long = editor.getDocument.getModificationStamp
+
+  /**
+    * A queued request
+    *
+    * @param stamp    The modification stamp of the document at the time of the request
+    * @param kind     The kind of request
+    * @param timeout  The timeout, in ms
+    * @param send     The function sending the request
+    * @param onResult The function to call on the EDT with the result
+    * @tparam T The type of the result
+    */
+  private case class Pending[T](stamp: Long, kind: Timeouts, timeout: Int, send: RequestManager => CompletableFuture[T], onResult: T => Unit) {
+
+    /**
+      * Sends the request, and dispatches its result to the EDT once it arrives, unless the document changed meanwhile
+      * The request is cancelled if it doesn't complete within its timeout
+      *
+      * @param requestManager The RequestManager
+      * @param current        The modification stamp of the document when the request is sent
+      */
+    def start(requestManager: RequestManager, current: Long): Unit = {
+      val future = send(requestManager)
+      if (future != null) {
+        val timedOut = new AtomicBoolean(false)
+        val timer: Runnable = () => if (!future.isDone && timedOut.compareAndSet(false, true)) {
+          LOG.warn("Request " + kind + " timed out after " + timeout + "ms")
+          wrapper.notifyFailure(kind)
+          future.cancel(true)
+        }
+        val timeoutTask = LSPExecutors.scheduler.schedule(timer, timeout, TimeUnit.MILLISECONDS)
+        future.whenComplete((result, e) => {
+          timeoutTask.cancel(false)
+          if (e == null) {
+            wrapper.notifySuccess(kind)
+            if (result != null) ApplicationUtils.invokeLaterCoalesced(() => if (!editor.isDisposed && stamp == current) onResult(result))
+          } else if (!timedOut.get()) {
+            val cause = e match {
+              case c: CompletionException if c.getCause != null => c.getCause
+              case other => other
+            }
+            cause match {
+              case _: CancellationException =>
+              case ex: Exception =>
+                LOG.warn(ex)
+                wrapper.crashed(ex)
+              case t =>
+                LOG.warn(t)
+                wrapper.crashed(new ExecutionException(t))
+            }
+          }
+        })
+      }
+    }
+  }
+
+}
+
+object RequestBatcher {
+  private val LOG: Logger = Logger.getInstance(classOf[RequestBatcher])
+}
@@ -0,0 +1,153 @@
+package com.github.gtache.lsp.editor
+
+import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.editor.colors.TextAttributesKey
+import com.intellij.openapi.editor.markup.{HighlighterLayer, HighlighterTargetArea, RangeHighlighter}
+
+/**
+  * The semantic highlighting tokens of a document, stored as a flat array of (line, start, length, scope) quadruplets
+  * sorted by line, along with the highlighters painting them
+  * Only the lines sent by the server are repainted, and the tokens are shifted on local edits until the server refreshes them
+  * Must only be used on the EDT
+  *
+  * @param editor The editor of the document
+  * @param keys   The attributes key of each scope index
+  */
+class SemanticTokensStore(editor: Editor, keys: Array[TextAttributesKey]) {
+
+  private val LAYER = HighlighterLayer.ADDITIONAL_SYNTAX
+  private var tokens: Array[Int] = Array.emptyIntArray
+  private var highlighters: Array[RangeHighlighter] = Array()
+  private var count: Int = 0
+
+  /**
+    * Replaces the tokens of the given lines
+    *
+    * @param lines The (line, (start, length, scope) triples) of the lines, an empty array removing the tokens of the line
+    */
+  def update(lines: Seq[(Int, Array[Int])]): Unit = {
+    val updated = lines.sortBy(l => l._1)
+    val updatedLines = updated.map(l => l._1).toSet
+    val added = updated.map(l => l._2.length / 3).sum
+    val newTokens = new Array[Int]((count + added) * 4)
+    val newHighlighters = new Array[RangeHighlighter](count + added)
+    var newCount = 0
+
+    def copy(i: Int): Unit = {
+      System.arraycopy(tokens, 4 * i, newTokens, 4 * newCount, 4)
+      newHighlighters(newCount) = highlighters(i)
+      newCount += 1
+    }
+
+    var i = 0
+    updated.foreach(l => {
+      val (line, triples) = l
+      while (i < count && tokens(4 * i) < line) {
+        if (updatedLines.contains(tokens(4 * i))) removeHighlighter(i) else copy(i)
+        i += 1
+      }
+      var j = 0
+      while (j < triples.length / 3) {
+        newTokens(4 * newCount) = line
+        newTokens(4 * newCount + 1) = triples(3 * j)
+        newTokens(4 * newCount + 2) = triples(3 * j + 1)
+        newTokens(4 * newCount + 3) = triples(3 * j + 2)
+        newHighlighters(newCount) = addHighlighter(line, triples(3 * j), triples(3 * j + 1), triples(3 * j + 2))
+        newCount += 1
+        j += 1
+      }
+    })
+    while (i < count) {
+      if (updatedLines.contains(tokens(4 * i))) removeHighlighter(i) else copy(i)
+      i += 1
+    }
+    tokens = newTokens
+    highlighters = newHighlighters
+    count = newCount
+  }
+
+  /**
+    * Shifts the tokens after a local edit, removing the ones it touched
+    * The highlighters follow the edit by themselves, only the positions of the tokens must be updated
+    *
+    * @param startLine    The line of the start of the edit
+    * @param startColumn  The column of the start of the edit
+    * @param oldEndLine   The line of the end of the replaced text
+    * @param oldEndColumn The column of the end of the replaced text
+    * @param lineDelta    The number of lines added (or removed if negative)
+    * @param columnDelta  The number of columns added (or removed if negative) on the old end line
+    */
+  def shift(startLine: Int, startColumn: Int, oldEndLine: Int, oldEndColumn: Int, lineDelta: Int, columnDelta: Int): Unit = {
+    var newCount = 0
+    var i = 0
+    while (i < count) {
+      val line = tokens(4 * i)
+      val start = tokens(4 * i + 1)
+      val length = tokens(4 * i + 2)
+      val before = line < startLine || (line == startLine && start + length <= startColumn)
+      val after = line > oldEndLine || (line == oldEndLine && start >= oldEndColumn)
+      if (before || after) {
+        System.arraycopy(tokens, 4 * i, tokens, 4 * newCount, 4)
+        highlighters(newCount) = highlighters(i)
+        if (after) {
+          if (line == oldEndLine) tokens(4 * newCount + 1) = start + columnDelta
+          tokens(4 * newCount) = line + lineDelta
+        }
+        newCount += 1
+      } else {
+        removeHighlighter(i)
+      }
+      i += 1
+    }
+    i = newCount
+    while (i < count) {
+      highlighters(i) = null
+      i += 1
+    }
+    count = newCount
+  }
+
+  /**
+    * Removes all the tokens and their highlighters
+    */
+  def clear(): Unit = {
+    var i = 0
+    while (i < count) {
+      removeHighlighter(i)
+      i += 1
+    }
+    tokens = Array.emptyIntArray
+    highlighters = Array()
+    count = 0
+  }
+
+  /**
+    * @return The number of tokens
+    */
+  def size: Int = count
+
+  /**
+    * @return The (line, start, length, scope) tokens
+    */
+  private[editor] def toSeq: Seq[(Int, Int, Int, Int)] = {
+    (0 until count).map(i => (tokens(4 * i), tokens(4 * i + 1), tokens(4 * i + 2), tokens(4 * i + 3)))
+  }
+
+  private def addHighlighter(line: Int, start: Int, length: Int, scope: Int): RangeHighlighter = {
+    val document = editor.getDocument
+    val key = if (scope >= 0 && scope < keys.length) keys(scope) else null
+    if (key == null || line >= document.getLineCount) null else {
+      val lineEnd = document.getLineEndOffset(line)
+      val startOffset = math.min(document.getLineStartOffset(line) + start, lineEnd)
+      val endOffset = math.min(startOffset + length, lineEnd)
+      if (startOffset >= endOffset) null else {
+        editor.getMarkupModel.addRangeHighlighter(startOffset, endOffset, LAYER, editor.getColorsScheme.getAttributes(key), HighlighterTargetArea.EXACT_RANGE)
+      }
+    }
+  }
+
+  private def removeHighlighter(i: Int): Unit = {
+    val highlighter = highlighters(i)
+    if (highlighter != null) editor.getMarkupModel.removeHighlighter(highlighter)
+  }
+}
@@ -1,10 +1,14 @@
 package com.github.gtache.lsp.editor.listeners
 
-import com.github.gtache.lsp.requests.FileEventManager
+import com.github.gtache.lsp.requests.{FileEventFilter, FileEventManager}
+import com.github.gtache.lsp.utils.FileUtils
 import com.intellij.openapi.vfs._
 
 /**
   * Object listening to file system changes
+  * The events on files no server is interested in are rejected by the FileEventFilter
+  * The cached uris are invalidated on every rename, move or deletion, before the events are forwarded (and before the
+  * change for renames and moves, when the uris under a directory are still known)
   */
 object VFSListener extends VirtualFileListener {
   /**
@@ -14,7 +18,9 @@ object VFSListener extends VirtualFileListener {
     * @param event the event object containing information about the change.
     */
   override def propertyChanged(event: VirtualFilePropertyEvent): Unit = {
-    if (event.getPropertyName == VirtualFile.PROP_NAME) FileEventManager.fileRenamed(event.getOldValue.asInstanceOf[String], event.getNewValue.asInstanceOf[String])
+    if (event.getPropertyName == VirtualFile.PROP_NAME) FileUtils.invalidate(event.getFile)
+    if (event.getPropertyName == VirtualFile.PROP_NAME && FileEventFilter.isRelevantRename(event.getFile, event.getOldValue.asInstanceOf[String], event.getNewValue.asInstanceOf[String]))
+      FileEventManager.fileRenamed(event.getFile, event.getOldValue.asInstanceOf[String], event.getNewValue.asInstanceOf[String])
   }
 
   /**
@@ -23,7 +29,7 @@ object VFSListener extends VirtualFileListener {
     * @param event the event object containing information about the change.
     */
   override def contentsChanged(event: VirtualFileEvent): Unit = {
-    FileEventManager.fileChanged(event.getFile)
+    if (FileEventFilter.isRelevant(event.getFile)) FileEventManager.fileChanged(event.getFile)
   }
 
   /**
@@ -32,7 +38,8 @@ object VFSListener extends VirtualFileListener {
     * @param event the event object containing information about the change.
     */
   override def fileDeleted(event: VirtualFileEvent): Unit = {
-    FileEventManager.fileDeleted(event.getFile)
+    FileUtils.invalidate(event.getFile)
+    if (FileEventFilter.isRelevantDeletionOrMove(event.getFile)) FileEventManager.fileDeleted(event.getFile)
   }
 
   /**
@@ -41,7 +48,8 @@ object VFSListener extends VirtualFileListener {
     * @param event the event object containing information about the change.
     */
   override def fileMoved(event: VirtualFileMoveEvent): Unit = {
-    FileEventManager.fileMoved(event.getFile)
+    FileUtils.invalidate(event.getFile)
+    if (FileEventFilter.isRelevantDeletionOrMove(event.getFile)) FileEventManager.fileMoved(event.getFile, event.getOldParent, event.getNewParent)
   }
 
   /**
@@ -59,7 +67,7 @@ object VFSListener extends VirtualFileListener {
     * @param event the event object containing information about the change.
     */
   override def fileCreated(event: VirtualFileEvent): Unit = {
-    FileEventManager.fileCreated(event.getFile)
+    if (FileEventFilter.isRelevant(event.getFile)) FileEventManager.fileCreated(event.getFile)
   }
 
   /**
@@ -68,6 +76,7 @@ object VFSListener extends VirtualFileListener {
     * @param event the event object containing information about the change.
     */
   override def beforePropertyChange(event: VirtualFilePropertyEvent): Unit = {
+    if (event.getPropertyName == VirtualFile.PROP_NAME) FileUtils.invalidate(event.getFile, withChildren = true)
   }
 
   /**
@@ -92,5 +101,6 @@ object VFSListener extends VirtualFileListener {
     * @param event the event object containing information about the change.
     */
   override def beforeFileMovement(event: VirtualFileMoveEvent): Unit = {
+    FileUtils.invalidate(event.getFile, withChildren = true)
   }
 }
@@ -0,0 +1,157 @@
+package com.github.gtache.lsp.requests
+
+import java.util
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.github.gtache.lsp.PluginMain
+import com.github.gtache.lsp.client.languageserver.FileWatchers
+import com.intellij.openapi.fileTypes.FileTypeManager
+import com.intellij.openapi.project.ProjectManager
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.vfs.VirtualFile
+
+/**
+  * Quickly rejects the file events no server can be interested in (build outputs, vcs files, etc)
+  * The extensions and names of interest are precomputed from the supported extensions, the forced associations and
+  * the watchers registered by the servers, and are recomputed lazily after invalidate() is called
+  */
+object FileEventFilter {
+
+  private val generation = new AtomicInteger(0)
+  @volatile private var interest: Interest = _
+
+  /**
+    * Must be called when the supported extensions, the forced associations or the registered watchers change
+    */
+  def invalidate(): Unit = {
+    generation.incrementAndGet()
+    interest = null
+  }
+
+  /**
+    * For the creation or the modification of a file
+    *
+    * @param file The file
+    * @return Whether a server may be interested in an event on this file (never for directories)
+    */
+  def isRelevant(file: VirtualFile): Boolean = {
+    file != null && !file.isDirectory && isRelevant(file.getNameSequence) && !isIgnored(file)
+  }
+
+  /**
+    * For the deletion or the move of a file
+    *
+    * @param file The file
+    * @return Whether a server may be interested in an event on this file (directories are, as they may contain watched files)
+    */
+  def isRelevantDeletionOrMove(file: VirtualFile): Boolean = {
+    file != null && (file.isDirectory || isRelevant(file.getNameSequence)) && !isIgnored(file)
+  }
+
+  /**
+    * For the renaming of a file
+    *
+    * @param file    The file
+    * @param oldName The old name
+    * @param newName The new name
+    * @return Whether a server may be interested in an event on this file (directories are, as they may contain watched files)
+    */
+  def isRelevantRename(file: VirtualFile, oldName: String, newName: String): Boolean = {
+    file != null && (file.isDirectory || isRelevant(oldName) || isRelevant(newName)) && !isIgnored(file)
+  }
+
+  /**
+    * Looks the file up in the indexes : must only be called for the files passing the name check
+    *
+    * @param file The file
+    * @return Whether the file is ignored by the IDE (vcs directories, etc) or excluded from an open project (build outputs, etc)
+    */
+  def isIgnored(file: VirtualFile): Boolean = {
+    FileTypeManager.getInstance().isFileIgnored(file) ||
+      ProjectManager.getInstance().getOpenProjects.exists(p => !p.isDisposed && ProjectFileIndex.getInstance(p).isExcluded(file))
+  }
+
+  /**
+    * @param name The name of a file
+    * @return Whether a server may be interested in an event on a file with this name
+    */
+  def isRelevant(name: CharSequence): Boolean = {
+    val current = getInterest
+    current.all || current.names.contains(name, 0, name.length()) || {
+      var dot = name.length() - 1
+      while (dot >= 0 && name.charAt(dot) != '.') dot -= 1
+      dot >= 0 && current.extensions.contains(name, dot + 1, name.length())
+    }
+  }
+
+  private def getInterest: Interest = {
+    val current = interest
+    if (current != null) current else {
+      val gen = generation.get()
+      val computed = computeInterest()
+      if (generation.get() == gen) interest = computed
+      computed
+    }
+  }
+
+  private def computeInterest(): Interest = {
+    val approximations = PluginMain.getAllServerWrappers.toList.flatMap(w => w.getFileWatchers).map(w => FileWatchers.approximate(w.pattern))
+    if (approximations.contains(None)) {
+      Interest(all = true, NameSet(Nil), NameSet(Nil))
+    } else {
+      val extensions = PluginMain.getSupportedExtensions ++ approximations.flatMap(a => a.get._1)
+      val names = PluginMain.getForcedAssociationsNames ++ approximations.flatMap(a => a.get._2)
+      Interest(all = false, NameSet(extensions), NameSet(names))
+    }
+  }
+
+  /**
+    * The files of interest
+    *
+    * @param all        Whether every file may be of interest
+    * @param extensions The extensions of interest
+    * @param names      The file names of interest
+    */
+  private case class Interest(all: Boolean, extensions: NameSet, names: NameSet)
+
+  /**
+    * A set of strings which can be queried with a part of a CharSequence without allocating
+    *
+    * @param values The strings
+    */
+  private case class NameSet(values: Iterable[String]) {
+    private val sorted: Array[(Int, String)] = values.toArray.distinct.map(v => (v.hashCode, v)).sortBy(v => v._1)
+    private val hashes: Array[Int] = sorted.map(v => v._1)
+    private val strings: Array[String] = sorted.map(v => v._2)
+
+    def contains(seq: CharSequence, start: Int, end: Int): Boolean = {
+      if (hashes.isEmpty) false else {
+        var hash = 0
+        var i = start
+        while (i < end) {
+          hash = 31 * hash + seq.charAt(i)
+          i += 1
+        }
+        var idx = util.Arrays.binarySearch(hashes, hash)
+        if (idx < 0) false else {
+          while (idx > 0 && hashes(idx - 1) == hash) idx -= 1
+          var found = false
+          while (!found && idx < hashes.length && hashes(idx) == hash) {
+            found = regionEquals(strings(idx), seq, start, end)
+            idx += 1
+          }
+          found
+        }
+      }
+    }
+
+    private def regionEquals(str: String, seq: CharSequence, start: Int, end: Int): Boolean = {
+      if (str.length != end - start) false else {
+        var i = 0
+        while (i < str.length && str.charAt(i) == seq.charAt(start + i)) i += 1
+        i == str.length
+      }
+    }
+  }
+
+}
@@ -1,20 +1,30 @@
 package com.github.gtache.lsp.requests
 
+import java.util.concurrent.{ScheduledFuture, TimeUnit}
+
 import com.github.gtache.lsp.PluginMain
 import com.github.gtache.lsp.client.languageserver.ServerStatus
 import com.github.gtache.lsp.client.languageserver.wrapper.LanguageServerWrapper
 import com.github.gtache.lsp.editor.EditorEventManager
-import com.github.gtache.lsp.utils.{ApplicationUtils, FileUtils}
+import com.github.gtache.lsp.utils.{ApplicationUtils, FileUtils, LSPExecutors}
 import com.intellij.openapi.editor.Document
 import com.intellij.openapi.fileEditor.FileDocumentManager
 import com.intellij.openapi.vfs.VirtualFile
 import org.eclipse.lsp4j.{DidChangeWatchedFilesParams, FileChangeType, FileEvent}
 
+import scala.collection.mutable
+
 /**
   * Handles all file events (save, willSave, changed, etc)
   */
 object FileEventManager {
 
+  private val WATCHED_FILES_DELAY = 200 //Time during which file events are collected before being sent, in ms
+  private val batchLock = new Object
+  private var batchDepth = 0
+  private var pendingFlush: ScheduledFuture[_] = _
+  private val pendingEvents = mutable.LinkedHashSet[(String, FileChangeType, LanguageServerWrapper)]()
+
   /**
     * Indicates that a document will be saved
     *
@@ -51,10 +61,16 @@ object FileEventManager {
   /**
     * Called when a file is moved. Notifies the server if this file was watched.
     *
-    * @param file The file
+    * @param file      The file
+    * @param oldParent The directory the file was in
+    * @param newParent The directory the file is now in
     */
-  def fileMoved(file: VirtualFile): Unit = {
-
+  def fileMoved(file: VirtualFile, oldParent: VirtualFile, newParent: VirtualFile): Unit = {
+    val oldUri = childURI(oldParent, file.getName)
+    val newUri = childURI(newParent, file.getName)
+    if (oldUri != null && newUri != null) {
+      changedConfigurations(Seq((oldUri, FileChangeType.Deleted), (newUri, FileChangeType.Created)), null)
+    }
   }
 
   /**
@@ -69,27 +85,96 @@ object FileEventManager {
     }
   }
 
+  /**
+    * Runs the given block, sending all the file events it triggers as soon as it ends, in a single notification per server
+    * Used for operations touching many files at once (e.g. the resource operations of a WorkspaceEdit)
+    *
+    * @param block The block to run
+    * @tparam T The type of the result
+    * @return The result of the block
+    */
+  def batchEvents[T](block: => T): T = {
+    batchLock.synchronized {
+      batchDepth += 1
+    }
+    try {
+      block
+    } finally {
+      val mustFlush = batchLock.synchronized {
+        batchDepth -= 1
+        batchDepth == 0 && pendingEvents.nonEmpty
+      }
+      if (mustFlush) flush()
+    }
+  }
+
   private def changedConfiguration(uri: String, typ: FileChangeType, wrapper: LanguageServerWrapper = null): Unit = {
+    changedConfigurations(Seq((uri, typ)), wrapper)
+  }
+
+  /**
+    * Queues file events, which are sent after WATCHED_FILES_DELAY (or at the end of the current batch)
+    *
+    * @param changes The (uri, type) of the changes
+    * @param wrapper The wrapper which must not be notified (or null)
+    */
+  private def changedConfigurations(changes: Seq[(String, FileChangeType)], wrapper: LanguageServerWrapper): Unit = {
+    batchLock.synchronized {
+      pendingEvents ++= changes.map(c => (c._1, c._2, wrapper))
+      if (batchDepth == 0 && pendingFlush == null) {
+        val task: Runnable = () => flush()
+        pendingFlush = LSPExecutors.scheduler.schedule(task, WATCHED_FILES_DELAY, TimeUnit.MILLISECONDS)
+      }
+    }
+  }
+
+  /**
+    * Sends the pending events, unless a batch is running (it will send them when it ends)
+    */
+  private def flush(): Unit = {
+    val events = batchLock.synchronized {
+      if (pendingFlush != null) pendingFlush.cancel(false)
+      pendingFlush = null
+      if (batchDepth == 0) {
+        val res = pendingEvents.toList
+        pendingEvents.clear()
+        res
+      } else Nil
+    }
+    if (events.nonEmpty) notifyServers(events)
+  }
+
+  /**
+    * Sends the events watched by each started server, in a single notification per server
+    *
+    * @param events The events (uri, type, wrapper which must not be notified of it (or null))
+    */
+  private def notifyServers(events: Seq[(String, FileChangeType, LanguageServerWrapper)]): Unit = {
     import scala.collection.JavaConverters._
     ApplicationUtils.pool(() => {
-      val event = new FileEvent(uri, typ)
-      val params = new DidChangeWatchedFilesParams(Seq(event).asJava)
       val wrappers = PluginMain.getAllServerWrappers
       if (wrappers != null)
         wrappers.foreach(w =>
-          if (w != wrapper && w.getRequestManager != null && w.getStatus == ServerStatus.STARTED)
-            w.getRequestManager.didChangeWatchedFiles(params))
+          if (w.getRequestManager != null && w.getStatus == ServerStatus.STARTED) {
+            val toSend = events.filter(e => e._3 != w && w.isWatched(e._1, e._2)).map(e => new FileEvent(e._1, e._2))
+            if (toSend.nonEmpty) w.getRequestManager.didChangeWatchedFiles(new DidChangeWatchedFilesParams(toSend.asJava))
+          })
     })
   }
 
   /**
     * Called when a file is renamed. Notifies the server if this file was watched.
     *
+    * @param file The renamed file
     * @param oldV The old file name
     * @param newV the new file name
     */
-  def fileRenamed(oldV: String, newV: String): Unit = {
-
+  def fileRenamed(file: VirtualFile, oldV: String, newV: String): Unit = {
+    val oldUri = childURI(file.getParent, oldV)
+    val newUri = childURI(file.getParent, newV)
+    if (oldUri != null && newUri != null) {
+      changedConfigurations(Seq((oldUri, FileChangeType.Deleted), (newUri, FileChangeType.Created)), null)
+    }
   }
 
   /**
@@ -104,4 +189,16 @@ object FileEventManager {
     }
   }
 
+  /**
+    * Returns the uri of a (possibly non-existing) file in a directory
+    *
+    * @param parent The directory
+    * @param name   The name of the file
+    * @return The uri, or null if the directory is unknown
+    */
+  private def childURI(parent: VirtualFile, name: String): String = {
+    val parentUri = if (parent != null) FileUtils.VFSToURI(parent) else null
+    if (parentUri != null) parentUri.stripSuffix(FileUtils.URI_PATH_SEP.toString) + FileUtils.URI_PATH_SEP + name.replace(" ", FileUtils.SPACE_ENCODED) else null
+  }
+
 }
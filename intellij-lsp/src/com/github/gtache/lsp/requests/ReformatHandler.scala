@@ -1,67 +1,76 @@
 package com.github.gtache.lsp.requests
 
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CancellationException, CompletableFuture, ConcurrentLinkedQueue, ExecutionException, Semaphore, TimeUnit, TimeoutException}
+
 import com.github.gtache.lsp.PluginMain
+import com.github.gtache.lsp.client.languageserver.wrapper.LanguageServerWrapperImpl
 import com.github.gtache.lsp.editor.EditorEventManager
 import com.github.gtache.lsp.utils.{ApplicationUtils, FileUtils}
-import com.intellij.openapi.editor.Editor
-import com.intellij.openapi.fileEditor.{FileEditorManager, OpenFileDescriptor}
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.{Document, Editor}
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.progress.{ProcessCanceledException, ProgressIndicator, ProgressManager, Task}
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.roots.ProjectFileIndex
-import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.{VfsUtilCore, VirtualFile, VirtualFileVisitor}
+import com.intellij.psi.codeStyle.CodeStyleSettingsManager
+import org.eclipse.lsp4j._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
 
 /**
   * Object handling reformat events
   */
 object ReformatHandler {
 
+  private val LOG: Logger = Logger.getInstance(ReformatHandler.getClass)
+  private val MAX_PARALLEL_FILES = 4 //Number of files being formatted at the same time by a server
+  private val POLL_DELAY = 100 //Time between two checks of the cancellation while waiting, in ms
+
   /**
-    * Unused
-    * Reformats all the files in the project
+    * Reformats all the files in the project supported by the language servers
+    * The files are collected in the background task
     *
     * @param project The project
-    * @return True if all the files were supported by the language servers, false otherwise
     */
-  def reformatAllFiles(project: Project): Boolean = {
-    var allFilesSupported = true
-    ProjectFileIndex.getInstance(project).iterateContent((fileOrDir: VirtualFile) => {
-      if (fileOrDir.isDirectory) {
-        true
-      } else {
-        if (PluginMain.isExtensionSupported(fileOrDir.getExtension)) {
-          reformatFile(fileOrDir, project)
-          true
-        } else {
-          allFilesSupported = false
-          true
+  def reformatAllFiles(project: Project): Unit = {
+    reformatInBackground(project, () => {
+      val files = ArrayBuffer[VirtualFile]()
+      var unsupported = 0
+      ProjectFileIndex.getInstance(project).iterateContent((fileOrDir: VirtualFile) => {
+        if (!fileOrDir.isDirectory) {
+          if (PluginMain.isExtensionSupported(fileOrDir.getExtension)) files += fileOrDir else unsupported += 1
         }
-      }
+        true
+      })
+      if (unsupported > 0) LOG.info(unsupported + " files are not supported by the language servers")
+      files
     })
-    allFilesSupported
   }
 
   /**
-    * Reformat a file given a VirtualFile and a Project
+    * Reformats the files supported by the language servers in the given files and directories
+    * The directories are visited in the background task
     *
-    * @param file    The file
-    * @param project The project
+    * @param project      The project
+    * @param filesAndDirs The files and directories
     */
-  def reformatFile(file: VirtualFile, project: Project): Unit = {
-    if (PluginMain.isExtensionSupported(file.getExtension)) {
-      val uri = FileUtils.VFSToURI(file)
-      EditorEventManager.forUri(uri) match {
-        case Some(manager) =>
-          manager.reformat()
-        case None =>
-          ApplicationUtils.invokeLater(() => {
-            val fileEditorManager = FileEditorManager.getInstance(project)
-            val descriptor = new OpenFileDescriptor(project, file)
-            val editor = ApplicationUtils.computableWriteAction(() => {
-              fileEditorManager.openTextEditor(descriptor, false)
-            })
-            EditorEventManager.forEditor(editor).get.reformat(closeAfter = true)
-          })
-      }
-    }
+  def reformatFilesAndDirectories(project: Project, filesAndDirs: Seq[VirtualFile]): Unit = {
+    reformatInBackground(project, () => {
+      val index = ProjectFileIndex.getInstance(project)
+      val files = mutable.LinkedHashSet[VirtualFile]()
+      filesAndDirs.foreach(root => if (root.isValid) VfsUtilCore.visitChildrenRecursively(root, new VirtualFileVisitor[AnyRef]() {
+        override def visitFile(file: VirtualFile): Boolean = {
+          ProgressManager.checkCanceled()
+          if (!file.isDirectory && index.isInContent(file) && PluginMain.isExtensionSupported(file.getExtension)) files += file
+          !index.isExcluded(file)
+        }
+      }))
+      files.toSeq
+    })
   }
 
   /**
@@ -82,4 +91,145 @@ object ReformatHandler {
     EditorEventManager.forEditor(editor).foreach(manager => manager.reformatSelection())
   }
 
+  /**
+    * Reformats files in the background, without opening editors
+    * The files which are not open on their server are opened and closed around their formatting request, and each
+    * server formats at most MAX_PARALLEL_FILES files at the same time
+    * The edits are applied once all the files are formatted (nothing is applied if the task is cancelled), as a single
+    * undoable command (see WorkspaceEditHandler.applyDocumentEdits) ; the documents modified meanwhile are skipped
+    *
+    * @param project The project
+    * @param files   The files
+    */
+  def reformatFiles(project: Project, files: Seq[VirtualFile]): Unit = {
+    if (files.nonEmpty) reformatInBackground(project, () => files)
+  }
+
+  /**
+    * Collects the files to reformat under a read action, then reformats them, in a background task
+    *
+    * @param project The project
+    * @param collect Returns the files
+    */
+  private def reformatInBackground(project: Project, collect: () => Seq[VirtualFile]): Unit = {
+    ProgressManager.getInstance().run(new Task.Backgroundable(project, "Reformatting files", true) {
+      override def run(indicator: ProgressIndicator): Unit = {
+        indicator.setText("Collecting files")
+        val files = ApplicationUtils.computableReadAction(() => collect())
+        indicator.setText("Reformatting files")
+        if (files.nonEmpty) {
+          val results = new ConcurrentLinkedQueue[FormattedFile]()
+          val requests = format(project, files, indicator, results)
+          try {
+            requests.foreach(r => {
+              while (!r.isDone) {
+                indicator.checkCanceled()
+                try r.get(POLL_DELAY, TimeUnit.MILLISECONDS) catch {
+                  case _: TimeoutException | _: ExecutionException | _: CancellationException =>
+                }
+              }
+            })
+          } catch {
+            case e: ProcessCanceledException =>
+              requests.foreach(r => r.cancel(true))
+              throw e
+          }
+          WorkspaceEditHandler.applyDocumentEdits(project, "Reformat files", results.asScala.toList.map(f => (f.uri, f.document, f.stamp, f.edits)))
+        }
+      }
+    })
+  }
+
+  /**
+    * The result of the formatting of a file
+    *
+    * @param uri      The uri of the file
+    * @param document The document of the file
+    * @param stamp    The modification stamp of the document when it was sent
+    * @param edits    The edits
+    */
+  private case class FormattedFile(uri: String, document: Document, stamp: Long, edits: Seq[TextEdit])
+
+  /**
+    * Sends the formatting requests of the files
+    *
+    * @param project   The project
+    * @param files     The files
+    * @param indicator The progress indicator
+    * @param results   The queue receiving the results
+    * @return The pending requests, completed once their result is handled
+    */
+  private def format(project: Project, files: Seq[VirtualFile], indicator: ProgressIndicator, results: ConcurrentLinkedQueue[FormattedFile]): Seq[CompletableFuture[_]] = {
+    val permits = mutable.Map[LanguageServerWrapperImpl, Semaphore]()
+    val requests = ArrayBuffer[CompletableFuture[_]]()
+    val done = new AtomicInteger(0)
+    val total = files.size
+    indicator.setIndeterminate(false)
+    try {
+      files.foreach(file => {
+        indicator.checkCanceled()
+        indicator.setText2(file.getPresentableUrl)
+        val document = ApplicationUtils.computableReadAction(() => FileDocumentManager.getInstance().getDocument(file))
+        PluginMain.getWrapperFor(file, project) match {
+          case Some(wrapper) if document != null =>
+            val semaphore = permits.getOrElseUpdate(wrapper, new Semaphore(MAX_PARALLEL_FILES))
+            while (!semaphore.tryAcquire(POLL_DELAY, TimeUnit.MILLISECONDS)) indicator.checkCanceled()
+            val uri = FileUtils.VFSToURI(file)
+            val (stamp, text) = ApplicationUtils.computableReadAction(() => (document.getModificationStamp, document.getText))
+            val options = formattingOptions(project, file)
+            val (request, close) = EditorEventManager.forUri(uri) match {
+              case Some(m) => (m.formatting(options), () => {})
+              case None if !wrapper.ensureStarted() =>
+                LOG.warn("Server " + wrapper.serverDefinition + " is not started, skipping " + uri)
+                (null, () => {})
+              case None =>
+                //Registered on the wrapper, so that an editor opened meanwhile takes the document over
+                if (wrapper.openTransientDocument(uri, text)) {
+                  (wrapper.getRequestManager.formatting(new DocumentFormattingParams(new TextDocumentIdentifier(uri), options)),
+                    () => wrapper.closeTransientDocument(uri))
+                } else EditorEventManager.forUri(uri) match {
+                  case Some(m) => (m.formatting(options), () => {})
+                  case None => (null, () => {})
+                }
+            }
+            val finished: Runnable = () => {
+              close()
+              semaphore.release()
+              indicator.setFraction(done.incrementAndGet().toDouble / total)
+            }
+            if (request == null) finished.run() else {
+              val handled = request.whenComplete((edits, e) => {
+                if (e != null) LOG.warn("Couldn't format " + uri + " : " + e.getMessage)
+                else {
+                  wrapper.notifySuccess(Timeouts.FORMATTING)
+                  if (edits != null && !edits.isEmpty) results.add(FormattedFile(uri, document, stamp, edits.asScala.toList))
+                }
+                finished.run()
+              })
+              //Cancelling the task cancels the request on the server
+              handled.whenComplete((_, _) => if (handled.isCancelled) request.cancel(true))
+              requests += handled
+            }
+          case _ =>
+            LOG.warn("No server for " + file.getPresentableUrl)
+        }
+      })
+    } catch {
+      case e: ProcessCanceledException =>
+        requests.foreach(r => r.cancel(true))
+        throw e
+    }
+    requests
+  }
+
+  /**
+    * @param project The project
+    * @param file    The file
+    * @return The formatting options corresponding to the code style of the file
+    */
+  private def formattingOptions(project: Project, file: VirtualFile): FormattingOptions = {
+    val indentOptions = CodeStyleSettingsManager.getSettings(project).getIndentOptions(file.getFileType)
+    new FormattingOptions(indentOptions.TAB_SIZE, !indentOptions.USE_TAB_CHAR)
+  }
+
 }
@@ -0,0 +1,94 @@
+package com.github.gtache.lsp.requests
+
+import java.util.Base64
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.editor.DefaultLanguageHighlighterColors._
+import com.intellij.openapi.editor.colors.TextAttributesKey
+
+/**
+  * Object used to process the semanticHighlighting notifications
+  */
+object SemanticHighlightingHandler {
+
+  private val LOG: Logger = Logger.getInstance(SemanticHighlightingHandler.getClass)
+  private val TOKEN_BYTES = 8
+
+  //The most specific prefixes must come first
+  private val SCOPES_TO_KEYS: Seq[(String, TextAttributesKey)] = Seq(
+    "comment.block.documentation" -> DOC_COMMENT,
+    "comment.line" -> LINE_COMMENT,
+    "comment" -> BLOCK_COMMENT,
+    "constant.numeric" -> NUMBER,
+    "constant.character.escape" -> VALID_STRING_ESCAPE,
+    "constant" -> CONSTANT,
+    "string" -> STRING,
+    "keyword.operator" -> OPERATION_SIGN,
+    "keyword" -> KEYWORD,
+    "storage" -> KEYWORD,
+    "entity.name.function" -> FUNCTION_DECLARATION,
+    "support.function" -> FUNCTION_CALL,
+    "meta.function-call" -> FUNCTION_CALL,
+    "entity.name.type" -> CLASS_NAME,
+    "entity.name.class" -> CLASS_NAME,
+    "entity.other.inherited-class" -> CLASS_REFERENCE,
+    "support.type" -> CLASS_REFERENCE,
+    "support.class" -> CLASS_REFERENCE,
+    "entity.name.tag" -> MARKUP_TAG,
+    "entity.other.attribute-name" -> MARKUP_ATTRIBUTE,
+    "entity.name.label" -> LABEL,
+    "entity.name" -> IDENTIFIER,
+    "variable.parameter" -> PARAMETER,
+    "variable.other.constant" -> CONSTANT,
+    "variable.other.member" -> INSTANCE_FIELD,
+    "variable.other.property" -> INSTANCE_FIELD,
+    "variable.language" -> KEYWORD,
+    "variable" -> LOCAL_VARIABLE,
+    "entity.other.attribute" -> METADATA,
+    "meta.annotation" -> METADATA,
+    "invalid" -> INVALID_STRING_ESCAPE
+  )
+
+  /**
+    * Decodes the tokens of a line (base64 encoded (character: uint32, length: uint16, scope: uint16) big-endian tokens)
+    *
+    * @param tokens The encoded tokens
+    * @return The (start, length, scope) triples, in a flat array
+    */
+  def decode(tokens: String): Array[Int] = {
+    if (tokens == null || tokens.isEmpty) Array.emptyIntArray else {
+      try {
+        val bytes = Base64.getDecoder.decode(tokens)
+        val count = bytes.length / TOKEN_BYTES
+        val res = new Array[Int](count * 3)
+        var i = 0
+        while (i < count) {
+          val b = i * TOKEN_BYTES
+          res(3 * i) = ((bytes(b) & 0xff) << 24) | ((bytes(b + 1) & 0xff) << 16) | ((bytes(b + 2) & 0xff) << 8) | (bytes(b + 3) & 0xff)
+          res(3 * i + 1) = ((bytes(b + 4) & 0xff) << 8) | (bytes(b + 5) & 0xff)
+          res(3 * i + 2) = ((bytes(b + 6) & 0xff) << 8) | (bytes(b + 7) & 0xff)
+          i += 1
+        }
+        res
+      } catch {
+        case e: IllegalArgumentException =>
+          LOG.warn("Invalid semantic highlighting tokens " + tokens, e)
+          Array.emptyIntArray
+      }
+    }
+  }
+
+  /**
+    * Returns the attributes of the scopes sent by the server in its capabilities
+    *
+    * @param scopes The scopes (an array of TextMate scopes per scope index)
+    * @return The attributes key for each scope index (null if none matches)
+    */
+  def toAttributesKeys(scopes: Seq[Seq[String]]): Array[TextAttributesKey] = {
+    if (scopes == null) Array() else scopes.map(s => toAttributesKey(s)).toArray
+  }
+
+  private def toAttributesKey(scopes: Seq[String]): TextAttributesKey = {
+    scopes.view.flatMap(scope => SCOPES_TO_KEYS.find(k => scope == k._1 || scope.startsWith(k._1 + ".")).map(k => k._2)).headOption.orNull
+  }
+}
@@ -7,7 +7,8 @@ object Timeout {
 
   import Timeouts._
 
-  private var timeouts: Map[Timeouts, Int] = Timeouts.values().map(t => t -> t.getDefaultTimeout).toMap
+  private val defaultTimeouts: Map[Timeouts, Int] = Timeouts.values().map(t => t -> t.getDefaultTimeout).toMap
+  private var timeouts: Map[Timeouts, Int] = defaultTimeouts
 
 
   def getTimeoutsJava: java.util.Map[Timeouts, Integer] = {
@@ -15,13 +16,14 @@ object Timeout {
     timeouts.map(t => (t._1, t._2.asInstanceOf[Integer])).asJava
   }
 
+  //The saved timeouts may not contain the newest kinds of request
   def setTimeouts(timeouts: Map[Timeouts, Int]): Unit = {
-    this.timeouts = timeouts
+    this.timeouts = defaultTimeouts ++ timeouts
   }
 
   def setTimeouts(timeouts: java.util.Map[Timeouts, Integer]): Unit = {
     import scala.collection.JavaConverters._
-    this.timeouts = timeouts.asScala.map(entry => (entry._1, entry._2.toInt)).toMap
+    setTimeouts(timeouts.asScala.map(entry => (entry._1, entry._2.toInt)).toMap)
   }
 
   def CODEACTION_TIMEOUT: Int = timeouts(CODEACTION)
@@ -34,8 +36,12 @@ object Timeout {
 
   def DOC_HIGHLIGHT_TIMEOUT: Int = timeouts(DOC_HIGHLIGHT)
 
+  def DOC_LINK_TIMEOUT: Int = timeouts(DOC_LINK)
+
   def EXECUTE_COMMAND_TIMEOUT: Int = timeouts(EXECUTE_COMMAND)
 
+  def FOLDING_TIMEOUT: Int = timeouts(FOLDING)
+
   def FORMATTING_TIMEOUT: Int = timeouts(FORMATTING)
 
   def HOVER_TIMEOUT: Int = timeouts(HOVER)
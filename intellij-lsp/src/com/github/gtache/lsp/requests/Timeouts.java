@@ -9,7 +9,9 @@ public enum Timeouts {
     COMPLETION(1000),
     DEFINITION(2000),
     DOC_HIGHLIGHT(1000),
+    DOC_LINK(2000),
     EXECUTE_COMMAND(2000),
+    FOLDING(2000),
     FORMATTING(2000),
     HOVER(2000),
     INIT(10000),
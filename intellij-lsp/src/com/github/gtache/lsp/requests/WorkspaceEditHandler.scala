@@ -1,22 +1,25 @@
 package com.github.gtache.lsp.requests
 
-import java.io.File
+import java.io.{File, IOException}
 import java.net.{URI, URL}
 import java.util
+import java.util.concurrent.CompletableFuture
 
 import com.github.gtache.lsp.contributors.psi.LSPPsiElement
 import com.github.gtache.lsp.editor.EditorEventManager
 import com.github.gtache.lsp.utils.{DocumentUtils, FileUtils}
+import com.intellij.openapi.application.{ApplicationManager, ModalityState}
 import com.intellij.openapi.command.{CommandProcessor, UndoConfirmationPolicy}
 import com.intellij.openapi.diagnostic.Logger
-import com.intellij.openapi.editor.Editor
-import com.intellij.openapi.fileEditor.{FileEditorManager, OpenFileDescriptor}
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.progress.{ProgressIndicator, ProgressManager, Task}
 import com.intellij.openapi.project.{Project, ProjectManager, ProjectUtil}
-import com.intellij.openapi.vfs.{LocalFileSystem, VirtualFile}
+import com.intellij.openapi.vfs.VfsUtil
 import com.intellij.psi.PsiElement
 import com.intellij.refactoring.listeners.RefactoringElementListener
 import com.intellij.usageView.UsageInfo
-import org.eclipse.lsp4j.{Range, TextEdit, WorkspaceEdit}
+import org.eclipse.lsp4j._
 
 import scala.collection.mutable
 
@@ -28,16 +31,17 @@ object WorkspaceEditHandler {
   import com.github.gtache.lsp.utils.ApplicationUtils._
 
   private val LOG: Logger = Logger.getInstance(WorkspaceEditHandler.getClass)
+  private val MAX_EDITS_PER_CHUNK = 1000 //Maximum number of TextEdits applied in a single EDT event
 
-  def applyEdit(elem: PsiElement, newName: String, infos: Array[UsageInfo], listener: RefactoringElementListener, openedEditors: Iterable[VirtualFile]): Unit = {
+  def applyEdit(elem: PsiElement, newName: String, infos: Array[UsageInfo], listener: RefactoringElementListener): Unit = {
     val edits = mutable.Map[String, mutable.ListBuffer[TextEdit]]()
     elem match {
       case lspElem: LSPPsiElement =>
         if (infos.forall(info => info.getElement.isInstanceOf[LSPPsiElement])) {
           infos.foreach(ui => {
-            val editor = FileUtils.editorFromVirtualFile(ui.getVirtualFile, ui.getProject)
+            val document = FileDocumentManager.getInstance().getDocument(ui.getVirtualFile)
             val range = ui.getElement.getTextRange
-            val lspRange = new Range(DocumentUtils.offsetToLSPPos(editor, range.getStartOffset), DocumentUtils.offsetToLSPPos(editor, range.getEndOffset))
+            val lspRange = new Range(DocumentUtils.offsetToLSPPos(document, range.getStartOffset), DocumentUtils.offsetToLSPPos(document, range.getEndOffset))
             val edit = new TextEdit(lspRange, newName)
             val uri = FileUtils.sanitizeURI(new URL(ui.getVirtualFile.getUrl.replace(" ", FileUtils.SPACE_ENCODED)).toURI.toString)
             if (edits.contains(uri)) {
@@ -52,7 +56,7 @@ object WorkspaceEditHandler {
             javaMap.put(edit._1, edit._2.asJava)
           })
           val workspaceEdit = new WorkspaceEdit(javaMap)
-          applyEdit(workspaceEdit, "Rename " + lspElem.getName + " to " + newName, openedEditors)
+          applyEdit(workspaceEdit, "Rename " + lspElem.getName + " to " + newName)
         }
       case _ =>
     }
@@ -60,106 +64,509 @@ object WorkspaceEditHandler {
 
   /**
     * Applies a WorkspaceEdit
+    * The edits are converted to offsets in the calling thread, then applied to the Documents (no editor is opened)
+    * in chunks of at most MAX_EDITS_PER_CHUNK edits, all the chunks being merged in a single undoable command
+    * The edit stops at the first document modified by the user after the offsets were computed (or whose edits overlap)
+    * Resource operations (create, rename, delete) are applied in order with the text edits, each run of consecutive
+    * operations being a single VFS write action whose file events are sent to the servers in one notification
     *
     * @param edit The edit
-    * @return True if everything was applied, false otherwise
+    * @param name The name of the command
+    * @return True if everything was applied (or scheduled), false otherwise
     */
-  def applyEdit(edit: WorkspaceEdit, name: String = "LSP edits", toClose: Iterable[VirtualFile] = Seq()): Boolean = {
+  def applyEdit(edit: WorkspaceEdit, name: String = "LSP edits"): Boolean = {
+    applyWorkspaceEdit(edit, name, _ => {})
+  }
+
+  /**
+    * Applies a WorkspaceEdit requested by a server, like applyEdit
+    * As the client advertises the Abort failure handling, the edit stops at the first document or resource operation
+    * which can't be applied, and the response is only completed once the edit is done
+    *
+    * @param edit The edit
+    * @param name The name of the command
+    * @return The response, telling whether the whole edit was applied
+    */
+  def applyServerEdit(edit: WorkspaceEdit, name: String = "LSP edits"): CompletableFuture[ApplyWorkspaceEditResponse] = {
+    val response = new CompletableFuture[ApplyWorkspaceEditResponse]()
+    //Prepared off the thread reading the messages of the server
+    pool(() => applyWorkspaceEdit(edit, name, failure => {
+      failure.foreach(reason => LOG.warn("Couldn't apply " + name + " : " + reason))
+      response.complete(new ApplyWorkspaceEditResponse(failure.isEmpty))
+    }))
+    response
+  }
+
+  /**
+    * Applies a WorkspaceEdit, aborting at the first failure
+    *
+    * @param edit   The edit
+    * @param name   The name of the command
+    * @param onDone Called with the reason of the failure, if any, once the edit is done
+    * @return False if the edit is invalid, true if it was scheduled
+    */
+  private def applyWorkspaceEdit(edit: WorkspaceEdit, name: String, onDone: Option[String] => Unit): Boolean = {
     import scala.collection.JavaConverters._
     if (edit != null) {
-      val changes = if (edit.getChanges != null) edit.getChanges.asScala else null
-      val dChanges = if (edit.getDocumentChanges != null) edit.getDocumentChanges.asScala else null
-      var didApply: Boolean = true
+      val steps: List[EditStep] = if (edit.getDocumentChanges != null) {
+        edit.getDocumentChanges.asScala.foldLeft(List[EditStep]())((acc, change) => {
+          if (change.isLeft) {
+            val textEdit = change.getLeft
+            val doc = textEdit.getTextDocument
+            val version = if (doc.getVersion != null) doc.getVersion.intValue() else Int.MaxValue
+            val fileEdit = (FileUtils.sanitizeURI(doc.getUri), version, textEdit.getEdits.asScala)
+            acc match {
+              case TextStep(edits) :: rest => TextStep(edits :+ fileEdit) :: rest
+              case _ => TextStep(Seq(fileEdit)) :: acc
+            }
+          } else if (change.isRight) {
+            acc match {
+              case ResourceStep(ops) :: rest => ResourceStep(ops :+ change.getRight) :: rest
+              case _ => ResourceStep(Seq(change.getRight)) :: acc
+            }
+          } else {
+            LOG.warn("Null edit")
+            acc
+          }
+        }).reverse
+      } else if (edit.getChanges != null) {
+        List(TextStep(edit.getChanges.asScala.map(c => (FileUtils.sanitizeURI(c._1), Int.MaxValue, c._2.asScala)).toList))
+      } else Nil
 
-      invokeLater(() => {
-        var curProject: Project = null
-        val openedEditors: scala.collection.mutable.ListBuffer[VirtualFile] = scala.collection.mutable.ListBuffer()
-
-        /**
-          * Opens an editor when needed and gets the Runnable
-          *
-          * @param edits   The text edits
-          * @param uri     The uri of the file
-          * @param version The version of the file
-          * @return The runnable containing the edits
-          */
-        def manageUnopenedEditor(edits: Iterable[TextEdit], uri: String, version: Int = Int.MaxValue): Runnable = {
-          val projects = ProjectManager.getInstance().getOpenProjects
-          val project = projects //Infer the project from the uri
-            .map(p => (FileUtils.VFSToURI(ProjectUtil.guessProjectDir(p)), p))
-            .filter(p => uri.startsWith(p._1))
-            .sortBy(s => s._1.length).reverse
-            .map(p => p._2)
-            .headOption
-            .getOrElse(projects(0))
-          val file = LocalFileSystem.getInstance().findFileByIoFile(new File(new URI(FileUtils.sanitizeURI(uri))))
-          val fileEditorManager = FileEditorManager.getInstance(project)
-          val descriptor = new OpenFileDescriptor(project, file)
-          val editor: Editor = computableWriteAction(() => {
-            fileEditorManager.openTextEditor(descriptor, false)
-          })
-          openedEditors += file
-          curProject = editor.getProject
-          var runnable: Runnable = null
-          EditorEventManager.forEditor(editor) match {
-            case Some(manager) => runnable = manager.getEditsRunnable(version, edits, name)
-            case None =>
+      steps match {
+        case Nil =>
+          onDone(None)
+          true
+        case TextStep(fileEdits) :: Nil =>
+          val plans = prepareAll(fileEdits)
+          if (plans == null) {
+            LOG.warn("Didn't apply " + name + ", some edits are invalid")
+            onDone(Some("Some edits are invalid or overlap"))
+            false
+          } else {
+            if (plans.nonEmpty) {
+              val context = EditContext(guessProject(plans.head.uri), name, new Object, plans.map(p => p.document).distinct.size > 1, abortOnFailure = true)
+              applyPlans(context, plans, failure => {
+                saveDocuments(plans)
+                onDone(failure)
+              })
+            } else onDone(None)
+            true
           }
-          runnable
+        case _ =>
+          val firstUri = steps.head match {
+            case TextStep(fileEdits) => fileEdits.headOption.map(f => f._1).orNull
+            case ResourceStep(ops) => resourceURI(ops.head)
+          }
+          applySteps(EditContext(guessProject(firstUri), name, new Object, isGlobal = true, abortOnFailure = true), steps, Nil, onDone)
+          true
+      }
+    } else {
+      onDone(Some("No edit"))
+      false
+    }
+  }
+
+  /**
+    * Applies edits computed by servers for known states of documents (e.g. formatting), as a single global undoable
+    * command applied by chunks like a WorkspaceEdit
+    * The documents modified since the edits were requested are skipped
+    *
+    * @param project The project
+    * @param name    The name of the command
+    * @param edits   The (uri, document, modification stamp when the edits were requested, edits) for each document
+    */
+  def applyDocumentEdits(project: Project, name: String, edits: Seq[(String, Document, Long, Iterable[TextEdit])]): Unit = {
+    val plans = edits.flatMap(e => {
+      val (uri, document, stamp, textEdits) = e
+      computableReadAction[Option[DocumentEditPlan]](() => {
+        if (document.getModificationStamp != stamp) {
+          LOG.warn("Document " + uri + " was modified since the edits were requested, skipping it")
+          None
+        } else if (!document.isWritable) {
+          LOG.warn("Document " + uri + " is not writable")
+          None
+        } else {
+          val offsets = DocumentUtils.toOffsets(document, textEdits)
+          if (offsets == null) LOG.warn("Couldn't apply edits to " + uri)
+          Option(offsets).map(o => DocumentEditPlan(uri, document, stamp, textEdits, o))
         }
+      })
+    })
+    if (plans.nonEmpty) applyPlans(EditContext(project, name, new Object, isGlobal = true, abortOnFailure = false), plans, _ => {})
+  }
 
-        //Get the runnable of edits for each editor to apply them all in one command
-        val toApply: scala.collection.mutable.ListBuffer[Runnable] = scala.collection.mutable.ListBuffer()
-        if (dChanges != null) {
-          dChanges.foreach(edit => {
-            if (edit.isLeft) {
-              val textEdit = edit.getLeft
-              val doc = textEdit.getTextDocument
-              val version = doc.getVersion
-              val uri = FileUtils.sanitizeURI(doc.getUri)
-              toApply += (EditorEventManager.forUri(uri) match {
-                case Some(manager) =>
-                  curProject = manager.editor.getProject
-                  manager.getEditsRunnable(version, textEdit.getEdits.asScala.toList, name)
-                case None => manageUnopenedEditor(textEdit.getEdits.asScala, uri, version)
-              })
-            } else if (edit.isRight) {
-              val resourceOp = edit.getRight
-              //TODO
-            } else {
-              LOG.warn("Null edit")
-            }
+  /**
+    * A part of a WorkspaceEdit which must be applied before the following ones
+    */
+  private sealed trait EditStep
 
+  /**
+    * Consecutive text edits
+    *
+    * @param fileEdits The (uri, version, edits) for each document
+    */
+  private case class TextStep(fileEdits: Seq[(String, Int, Iterable[TextEdit])]) extends EditStep
+
+  /**
+    * Consecutive resource operations
+    *
+    * @param ops The operations
+    */
+  private case class ResourceStep(ops: Seq[ResourceOperation]) extends EditStep
+
+  /**
+    * The information shared by all the commands applying a WorkspaceEdit
+    *
+    * @param project        The project
+    * @param name           The name of the command
+    * @param groupId        The command group id, so that the whole edit is undone at once
+    * @param isGlobal       Whether the edit touches more than one document
+    * @param abortOnFailure Whether the edit stops at the first document which can't be edited, or skips it
+    */
+  private case class EditContext(project: Project, name: String, groupId: Object, isGlobal: Boolean, abortOnFailure: Boolean)
+
+  /**
+    * Applies the steps in order, stopping at the first failure
+    * The resource operations and the text edits are applied on the EDT, the text edits being prepared on a pooled thread
+    *
+    * @param context The edit context
+    * @param steps   The remaining steps
+    * @param applied The plans applied until now (for saving)
+    * @param onDone  Called with the reason of the failure, if any, once the steps are done
+    */
+  private def applySteps(context: EditContext, steps: List[EditStep], applied: List[DocumentEditPlan], onDone: Option[String] => Unit): Unit = steps match {
+    case ResourceStep(ops) :: tail =>
+      invokeLater(() => {
+        var success = false
+        runCommand(context, () => success = FileEventManager.batchEvents(ops.forall(op => applyResourceOperation(op))))
+        if (success) applySteps(context, tail, applied, onDone) else {
+          LOG.warn("Couldn't apply resource operations of " + context.name + ", aborting")
+          saveDocuments(applied)
+          onDone(Some("Couldn't apply resource operations"))
+        }
+      })
+    case TextStep(fileEdits) :: tail =>
+      //Prepared when reached, as the documents may have been created by a previous step, but off the EDT
+      pool(() => {
+        val plans = prepareAll(fileEdits)
+        if (plans != null) {
+          applyPlans(context, plans, failure => if (failure.isEmpty) applySteps(context, tail, applied ++ plans, onDone) else {
+            saveDocuments(applied ++ plans)
+            onDone(failure)
           })
-        } else if (changes != null) {
-          changes.foreach(edit => {
-            val uri = FileUtils.sanitizeURI(edit._1)
-            val changes = edit._2.asScala
-            toApply += (EditorEventManager.forUri(uri) match {
-              case Some(manager) =>
-                curProject = manager.editor.getProject
-                manager.getEditsRunnable(edits = changes.toList, name = name)
-              case None =>
-                manageUnopenedEditor(changes, uri)
-            })
-          })
+        } else {
+          LOG.warn("Invalid edits in " + context.name + ", aborting")
+          saveDocuments(applied)
+          onDone(Some("Some edits are invalid or overlap"))
         }
-        if (toApply.contains(null)) {
-          LOG.warn("Didn't apply, null runnable")
-          didApply = false
+      })
+    case Nil =>
+      saveDocuments(applied)
+      onDone(None)
+  }
+
+  /**
+    * Prepares the edits of multiple documents
+    *
+    * @param fileEdits The (uri, version, edits) for each document
+    * @return The plans, or null if some edits can't be applied
+    */
+  private def prepareAll(fileEdits: Seq[(String, Int, Iterable[TextEdit])]): Seq[DocumentEditPlan] = {
+    val plans = fileEdits.map(f => prepare(f._1, f._2, f._3))
+    if (plans.contains(null)) null else plans
+  }
+
+  /**
+    * The edits to apply to a document, converted to offsets
+    *
+    * @param uri      The uri of the document
+    * @param document The document
+    * @param stamp    The modification stamp of the document when the offsets were computed
+    * @param edits    The original edits
+    * @param offsets  The (start, end, text) of the edits, from the end of the document to the start
+    */
+  private case class DocumentEditPlan(uri: String, document: Document, stamp: Long, edits: Iterable[TextEdit], offsets: Seq[(Int, Int, String)])
+
+  /**
+    * Prepares the edits for a document : checks the version, finds the document and computes the offsets
+    *
+    * @param uri     The uri of the document
+    * @param version The version of the document the edits were computed for
+    * @param edits   The edits
+    * @return The plan, or null if the edits can't be applied
+    */
+  private def prepare(uri: String, version: Int, edits: Iterable[TextEdit]): DocumentEditPlan = {
+    if (EditorEventManager.forUri(uri).exists(m => version < m.getVersion)) {
+      LOG.warn("Edit version " + version + " is older than current version for " + uri)
+      null
+    } else {
+      computableReadAction[DocumentEditPlan](() => {
+        val file = FileUtils.virtualFileFromURI(uri)
+        val document = if (file != null) FileDocumentManager.getInstance().getDocument(file) else null
+        if (document == null) {
+          LOG.warn("No document found for " + uri)
+          null
+        } else if (!document.isWritable) {
+          LOG.warn("Document " + uri + " is not writable")
+          null
         } else {
-          val runnable = new Runnable {
-            override def run(): Unit = toApply.foreach(r => r.run())
-          }
-          invokeLater(() => writeAction(() => {
-            CommandProcessor.getInstance().executeCommand(curProject, runnable, name, "LSPPlugin", UndoConfirmationPolicy.DEFAULT, false)
-            (openedEditors ++ toClose).foreach(f => FileEditorManager.getInstance(curProject).closeFile(f))
-          }))
+          val offsets = DocumentUtils.toOffsets(document, edits)
+          if (offsets != null) DocumentEditPlan(uri, document, document.getModificationStamp, edits, offsets) else null
         }
       })
-      didApply
-    } else false
+    }
+  }
+
+  /**
+    * A part of a plan, applied in a single EDT event
+    * As the offsets of a plan are sorted from the end of the document, applying a slice doesn't change the offsets of
+    * the following ones
+    *
+    * @param plan      The plan
+    * @param planIndex The index of the plan in the plans being applied
+    * @param from      The index of the first offset of the slice
+    * @param until     The index after the last offset of the slice
+    */
+  private case class PlanSlice(plan: DocumentEditPlan, planIndex: Int, from: Int, until: Int)
+
+  /**
+    * The state of the plans being applied
+    */
+  private class ApplyState {
+    //The stamps of the documents after our own edits, to tell them apart from the modifications of the user
+    val stamps: mutable.Map[Document, Long] = mutable.Map()
+    //The offsets actually used for each plan (they are recomputed if a previous plan edited the same document)
+    val offsets: mutable.Map[Int, Seq[(Int, Int, String)]] = mutable.Map()
+    var failure: Option[String] = None
+  }
+
+  /**
+    * Applies the plans on the EDT by chunks of at most MAX_EDITS_PER_CHUNK edits, using the same command group so that
+    * it can be undone at once. The plans with more edits are split across chunks.
+    * When there is more than one chunk, they are applied under a modal progress, so that no user command can be
+    * interleaved between them
+    *
+    * @param context The edit context
+    * @param plans   The plans
+    * @param onDone  Called on the EDT with the reason of the first failure, if any, once every chunk is applied
+    */
+  private def applyPlans(context: EditContext, plans: Seq[DocumentEditPlan], onDone: Option[String] => Unit): Unit = {
+    val slices = plans.zipWithIndex.flatMap(p => {
+      val (plan, idx) = p
+      (0 until plan.offsets.size by MAX_EDITS_PER_CHUNK).map(from => PlanSlice(plan, idx, from, math.min(from + MAX_EDITS_PER_CHUNK, plan.offsets.size)))
+    })
+    val chunks = slices.foldLeft(List[List[PlanSlice]]())((acc, slice) => acc match {
+      case cur :: rest if cur.map(s => s.until - s.from).sum + slice.until - slice.from <= MAX_EDITS_PER_CHUNK => (slice :: cur) :: rest
+      case _ => List(slice) :: acc
+    }).map(c => c.reverse).reverse
+    val state = new ApplyState
+
+    def aborted: Boolean = context.abortOnFailure && state.failure.nonEmpty
+
+    def applyChunk(chunk: Seq[PlanSlice]): Unit = if (!aborted) {
+      runCommand(context, () => chunk.foreach(slice => if (!aborted) {
+        val failure = applySlice(slice, state)
+        if (state.failure.isEmpty) state.failure = failure
+      }))
+    }
+
+    if (chunks.size <= 1) {
+      invokeLater(() => {
+        chunks.foreach(chunk => applyChunk(chunk))
+        onDone(state.failure)
+      })
+    } else {
+      invokeLater(() => ProgressManager.getInstance().run(new Task.Modal(context.project, context.name, false) {
+        override def run(indicator: ProgressIndicator): Unit = {
+          indicator.setIndeterminate(false)
+          chunks.zipWithIndex.foreach(c => if (!aborted) {
+            indicator.setFraction(c._2.toDouble / chunks.size)
+            ApplicationManager.getApplication.invokeAndWait(() => applyChunk(c._1), ModalityState.defaultModalityState())
+          })
+        }
+
+        override def onFinished(): Unit = onDone(state.failure)
+      }))
+    }
   }
 
+  /**
+    * Runs a write command belonging to the command group of the edit
+    *
+    * @param context  The edit context
+    * @param runnable The command
+    */
+  private def runCommand(context: EditContext, runnable: Runnable): Unit = {
+    val command = new Runnable {
+      override def run(): Unit = {
+        if (context.isGlobal) CommandProcessor.getInstance().markCurrentCommandAsGlobal(context.project)
+        runnable.run()
+      }
+    }
+    writeAction(() => CommandProcessor.getInstance().executeCommand(context.project, command, context.name, context.groupId, UndoConfirmationPolicy.DEFAULT, false))
+  }
+
+  /**
+    * Saves the documents modified by the plans
+    *
+    * @param plans The plans
+    */
+  private def saveDocuments(plans: Seq[DocumentEditPlan]): Unit = {
+    if (plans.nonEmpty) {
+      invokeLater(() => writeAction(() => plans.map(p => p.document).distinct.foreach(d => FileDocumentManager.getInstance().saveDocument(d))))
+    }
+  }
+
+  /**
+    * Applies a resource operation to the VFS. Must be called in a write action.
+    *
+    * @param op The operation
+    * @return True if it was applied (or ignored as per its options), false otherwise
+    */
+  private def applyResourceOperation(op: ResourceOperation): Boolean = {
+    def isTrue(b: java.lang.Boolean): Boolean = b != null && b.booleanValue()
+
+    try {
+      op match {
+        case create: CreateFile =>
+          val uri = FileUtils.sanitizeURI(create.getUri)
+          val existing = FileUtils.virtualFileFromURI(uri)
+          val options = create.getOptions
+          if (existing != null) {
+            if (options != null && isTrue(options.getOverwrite)) {
+              existing.setBinaryContent(Array.emptyByteArray)
+              true
+            } else if (options != null && isTrue(options.getIgnoreIfExists)) {
+              true
+            } else {
+              LOG.warn("File " + uri + " already exists")
+              false
+            }
+          } else {
+            val file = new File(new URI(uri))
+            val parent = VfsUtil.createDirectoryIfMissing(file.getParent)
+            parent != null && parent.createChildData(this, file.getName) != null
+          }
+        case rename: RenameFile =>
+          val oldUri = FileUtils.sanitizeURI(rename.getOldUri)
+          val newUri = FileUtils.sanitizeURI(rename.getNewUri)
+          val source = FileUtils.virtualFileFromURI(oldUri)
+          val target = FileUtils.virtualFileFromURI(newUri)
+          val options = rename.getOptions
+          if (source == null) {
+            LOG.warn("File " + oldUri + " doesn't exist")
+            false
+          } else if (target != null && options != null && isTrue(options.getIgnoreIfExists) && !isTrue(options.getOverwrite)) {
+            true
+          } else if (target != null && (options == null || !isTrue(options.getOverwrite))) {
+            LOG.warn("File " + newUri + " already exists")
+            false
+          } else {
+            if (target != null) target.delete(this)
+            val newFile = new File(new URI(newUri))
+            val newParent = VfsUtil.createDirectoryIfMissing(newFile.getParent)
+            if (newParent == null) false else {
+              if (newParent != source.getParent) source.move(this, newParent)
+              if (source.getName != newFile.getName) source.rename(this, newFile.getName)
+              true
+            }
+          }
+        case delete: DeleteFile =>
+          val uri = FileUtils.sanitizeURI(delete.getUri)
+          val file = FileUtils.virtualFileFromURI(uri)
+          val options = delete.getOptions
+          if (file == null) {
+            if (options != null && isTrue(options.getIgnoreIfNotExists)) true else {
+              LOG.warn("File " + uri + " doesn't exist")
+              false
+            }
+          } else if (file.isDirectory && file.getChildren.nonEmpty && (options == null || !isTrue(options.getRecursive))) {
+            LOG.warn("Directory " + uri + " is not empty")
+            false
+          } else {
+            file.delete(this)
+            true
+          }
+        case _ =>
+          LOG.warn("Unknown resource operation " + op)
+          false
+      }
+    } catch {
+      case e: IOException =>
+        LOG.warn(e)
+        false
+    }
+  }
+
+  /**
+    * Returns the uri targeted by a resource operation
+    *
+    * @param op The operation
+    * @return The uri
+    */
+  private def resourceURI(op: ResourceOperation): String = op match {
+    case create: CreateFile => FileUtils.sanitizeURI(create.getUri)
+    case rename: RenameFile => FileUtils.sanitizeURI(rename.getOldUri)
+    case delete: DeleteFile => FileUtils.sanitizeURI(delete.getUri)
+    case _ => null
+  }
+
+  /**
+    * Applies a slice of a plan to its document
+    * If the document was only modified by the previous plans of the same edit, the offsets are recomputed (the edits
+    * target the text resulting from the previous ones), and if it was modified by anything else, the plan is skipped
+    * The following slices of a plan are only applied if nothing but the previous slice modified the document
+    *
+    * @param slice The slice
+    * @param state The state of the plans being applied, updated by this method
+    * @return The reason why the slice couldn't be applied, or None if it was applied
+    */
+  private def applySlice(slice: PlanSlice, state: ApplyState): Option[String] = {
+    val plan = slice.plan
+    val document = plan.document
+    val stamp = document.getModificationStamp
+    val isOwnStamp = state.stamps.get(document).contains(stamp)
+    val offsets: Either[String, Seq[(Int, Int, String)]] = if (slice.from == 0) {
+      if (stamp == plan.stamp) {
+        Right(plan.offsets)
+      } else if (isOwnStamp) {
+        Option(DocumentUtils.toOffsets(document, plan.edits)).toRight("Edits overlap for " + plan.uri)
+      } else {
+        Left("Document " + plan.uri + " was modified since the edits were computed")
+      }
+    } else state.offsets.get(slice.planIndex) match {
+      case Some(o) if isOwnStamp => Right(o)
+      case Some(_) => Left("Document " + plan.uri + " was modified while the edits were applied")
+      case None => Left("Previous edits of " + plan.uri + " weren't applied")
+    }
+    offsets match {
+      case Right(o) =>
+        state.offsets.put(slice.planIndex, o)
+        DocumentUtils.applyOffsets(document, o.slice(slice.from, slice.until))
+        state.stamps.put(document, document.getModificationStamp)
+        None
+      case Left(reason) =>
+        LOG.warn(reason + ", skipping it")
+        Some(reason)
+    }
+  }
+
+  /**
+    * Infers the project from an uri
+    *
+    * @param uri The uri
+    * @return The project containing the file, or the first open project
+    */
+  private def guessProject(uri: String): Project = {
+    val projects = ProjectManager.getInstance().getOpenProjects
+    projects
+      .map(p => (FileUtils.VFSToURI(ProjectUtil.guessProjectDir(p)), p))
+      .filter(p => p._1 != null && uri != null && uri.startsWith(p._1))
+      .sortBy(s => s._1.length).reverse
+      .map(p => p._2)
+      .headOption
+      .getOrElse(projects.headOption.orNull)
+  }
 
 }
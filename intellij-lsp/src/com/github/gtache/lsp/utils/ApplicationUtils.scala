@@ -1,8 +1,10 @@
 package com.github.gtache.lsp.utils
 
-import java.util.concurrent.{Callable, Future}
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.{Callable, ConcurrentHashMap, ConcurrentLinkedQueue, Future}
 
 import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.util.Computable
 
 /**
@@ -10,16 +12,65 @@ import com.intellij.openapi.util.Computable
   */
 object ApplicationUtils {
 
+  private val LOG: Logger = Logger.getInstance(ApplicationUtils.getClass)
+  private val EDT_SLICE_BUDGET: Long = 8 * 1000000L //Time the UI updates may use before yielding the EDT, in ns
+  private val uiUpdates: ConcurrentLinkedQueue[AnyRef] = new ConcurrentLinkedQueue[AnyRef]()
+  private val latestUpdates: ConcurrentHashMap[UpdateKey, Runnable] = new ConcurrentHashMap[UpdateKey, Runnable]()
+  private val drainScheduled: AtomicBoolean = new AtomicBoolean(false)
+
   def invokeLater(runnable: Runnable): Unit = {
     ApplicationManager.getApplication.invokeLater(runnable)
   }
 
+  /**
+    * Runs an UI update on the EDT, together with the other updates queued meanwhile
+    *
+    * @param runnable The update
+    */
+  def invokeLaterCoalesced(runnable: Runnable): Unit = {
+    uiUpdates.add(runnable)
+    scheduleDrain()
+  }
+
+  /**
+    * Runs a replaceable UI update on the EDT (e.g. highlights, hints), together with the other updates queued meanwhile
+    * If another update with the same owner and kind is queued before this one is run, only the latest one is run
+    *
+    * @param owner    The owner of the update (e.g. the editor)
+    * @param kind     The kind of update
+    * @param runnable The update
+    */
+  def invokeLaterCoalesced(owner: AnyRef, kind: String, runnable: Runnable): Unit = {
+    val key = UpdateKey(owner, kind)
+    if (latestUpdates.put(key, runnable) == null) {
+      uiUpdates.add(key)
+    }
+    scheduleDrain()
+  }
+
+  /**
+    * Runs LSP work which isn't tied to a server, on the LSP shared executor
+    * The work of a server should use LanguageServerWrapperImpl.pool instead
+    *
+    * @param runnable The work
+    */
   def pool(runnable: Runnable): Unit = {
-    ApplicationManager.getApplication.executeOnPooledThread(runnable)
+    LSPExecutors.shared.execute(runnable)
   }
 
   def callablePool[T](callable: Callable[T]): Future[T] = {
-    ApplicationManager.getApplication.executeOnPooledThread(callable)
+    LSPExecutors.shared.submit(callable)
+  }
+
+  /**
+    * Runs CPU-bound work (conversions, parsing) on the LSP CPU executor
+    *
+    * @param callable The work
+    * @tparam T The type of the result
+    * @return The future result
+    */
+  def cpuPool[T](callable: Callable[T]): Future[T] = {
+    LSPExecutors.cpu.submit(callable)
   }
 
   def computableReadAction[T](computable: Computable[T]): T = {
@@ -33,4 +84,44 @@ object ApplicationUtils {
   def computableWriteAction[T](computable: Computable[T]): T = {
     ApplicationManager.getApplication.runWriteAction(computable)
   }
+
+  private def scheduleDrain(): Unit = {
+    if (drainScheduled.compareAndSet(false, true)) {
+      invokeLater(() => drainUpdates())
+    }
+  }
+
+  /**
+    * Runs the queued UI updates until EDT_SLICE_BUDGET is exhausted, the remaining ones are run in a later EDT slice
+    */
+  private def drainUpdates(): Unit = {
+    drainScheduled.set(false)
+    val start = System.nanoTime()
+    var next = uiUpdates.poll()
+    while (next != null) {
+      val update = next match {
+        case key: UpdateKey => latestUpdates.remove(key)
+        case runnable: Runnable => runnable
+        case _ => null
+      }
+      if (update != null) {
+        try {
+          update.run()
+        } catch {
+          case e: Exception => LOG.warn("Error while running an UI update", e)
+        }
+      }
+      next = if (System.nanoTime() - start < EDT_SLICE_BUDGET) uiUpdates.poll() else null
+    }
+    if (!uiUpdates.isEmpty) scheduleDrain()
+  }
+
+  /**
+    * The key of a replaceable UI update
+    *
+    * @param owner The owner of the update
+    * @param kind  The kind of update
+    */
+  private case class UpdateKey(owner: AnyRef, kind: String)
+
 }
@@ -2,11 +2,11 @@ package com.github.gtache.lsp.utils
 
 import com.github.gtache.lsp.utils.ApplicationUtils.computableReadAction
 import com.intellij.openapi.diagnostic.Logger
-import com.intellij.openapi.editor.{Editor, LogicalPosition}
+import com.intellij.openapi.editor.{Document, Editor, LogicalPosition}
 import com.intellij.openapi.util.TextRange
 import com.intellij.openapi.util.text.StringUtil
 import com.intellij.util.DocumentUtil
-import org.eclipse.lsp4j.Position
+import org.eclipse.lsp4j.{Position, TextEdit}
 
 import scala.math.min
 
@@ -96,4 +96,99 @@ object DocumentUtils {
     })
   }
 
+  /**
+    * Calculates a Position given a document and an offset
+    * Doesn't need an editor, so it can be used for files which are not opened
+    *
+    * @param doc    The document
+    * @param offset The offset
+    * @return an LSP position
+    */
+  def offsetToLSPPos(doc: Document, offset: Int): Position = {
+    computableReadAction(() => {
+      val line = doc.getLineNumber(offset)
+      new Position(line, offset - doc.getLineStartOffset(line))
+    })
+  }
+
+  /**
+    * Transforms an LSP position to an offset in a document
+    * Doesn't need an editor, so it can be used for files which are not opened
+    *
+    * @param doc The document
+    * @param pos The LSPPos
+    * @return The offset
+    */
+  def LSPPosToOffset(doc: Document, pos: Position): Int = {
+    computableReadAction(() => {
+      val lineCount = doc.getLineCount
+      if (lineCount == 0) 0 else {
+        val line = math.max(0, math.min(pos.getLine, lineCount - 1))
+        val lineStart = doc.getLineStartOffset(line)
+        val lineEnd = doc.getLineEndOffset(line)
+        if (pos.getLine >= lineCount || lineStart + pos.getCharacter > lineEnd) {
+          LOG.warn("LSPPOS outofbounds : " + pos + " line count : " + lineCount)
+        }
+        math.min(lineStart + math.max(pos.getCharacter, 0), lineEnd)
+      }
+    })
+  }
+
+  /**
+    * Converts edits to offsets, sorted so that applying them in order doesn't invalidate the following ones
+    *
+    * @param document The document
+    * @param edits    The edits
+    * @return The (start, end, text) of the edits, or null if some edits overlap
+    */
+  def toOffsets(document: Document, edits: Iterable[TextEdit]): Seq[(Int, Int, String)] = {
+    //Edits inserting at the same position must keep their order, hence the index
+    val sorted = edits.toList.zipWithIndex.map(e => {
+      val (edit, idx) = e
+      val text = if (edit.getNewText != null) edit.getNewText else ""
+      (LSPPosToOffset(document, edit.getRange.getStart), LSPPosToOffset(document, edit.getRange.getEnd), text, idx)
+    }).sortBy(e => (-e._1, -e._4))
+    if (sorted.sliding(2).exists(pair => pair.size == 2 && pair(1)._2 > pair.head._1)) {
+      LOG.warn("Overlapping edits for document " + document)
+      null
+    } else sorted.map(e => (e._1, e._2, e._3))
+  }
+
+  /**
+    * Applies edits sorted by toOffsets to a document, in a write action
+    * The edits replacing large ranges are reduced to what actually changes, so that the markers, folding regions and
+    * carets outside of the changed lines are kept and the document is only partially re-highlighted and synchronized
+    *
+    * @param document The document
+    * @param offsets  The (start, end, text) of the edits
+    */
+  def applyOffsets(document: Document, offsets: Seq[(Int, Int, String)]): Unit = {
+    offsets.foreach(o => {
+      val text = StringUtil.convertLineSeparators(o._3)
+      TextDiff.minimize(document.getImmutableCharSequence, o._1, o._2, text).foreach(r => {
+        val (start, end, newText) = r
+        if (newText.isEmpty) {
+          document.deleteString(start, end)
+        } else if (end - start <= 0) {
+          document.insertString(start, newText)
+        } else {
+          document.replaceString(start, end, newText)
+        }
+      })
+    })
+  }
+
+  /**
+    * Applies edits to a document, in a write action
+    *
+    * @param document The document
+    * @param edits    The edits
+    * @return False if the edits overlap (nothing is applied), true otherwise
+    */
+  def applyEdits(document: Document, edits: Iterable[TextEdit]): Boolean = {
+    val offsets = toOffsets(document, edits)
+    if (offsets != null) applyOffsets(document, offsets)
+    offsets != null
+  }
+
 }
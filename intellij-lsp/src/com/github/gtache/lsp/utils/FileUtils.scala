@@ -2,6 +2,8 @@ package com.github.gtache.lsp.utils
 
 import java.io.File
 import java.net.{URI, URL}
+import java.util
+import java.util.concurrent.ConcurrentMap
 
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.{Document, Editor}
@@ -10,10 +12,13 @@ import com.intellij.openapi.fileTypes.FileType
 import com.intellij.openapi.project.{Project, ProjectUtil}
 import com.intellij.openapi.vfs.{LocalFileSystem, VirtualFile}
 import com.intellij.psi.PsiFile
+import com.intellij.util.containers.ContainerUtil
 import org.eclipse.lsp4j.TextDocumentIdentifier
 
 /**
   * Various file / uri related methods
+  * The uris of the files and the files of the uris are cached (weakly on the files), as they are needed for every event,
+  * lookup and diagnostic ; the caches must be invalidated when a file is renamed, moved or deleted
   */
 object FileUtils {
   val os: OS.Value = if (System.getProperty("os.name").toLowerCase.contains("win")) OS.WINDOWS else OS.UNIX
@@ -23,6 +28,12 @@ object FileUtils {
   val URI_VALID_FILE_BEGIN: String = "file:///"
   val URI_PATH_SEP: Char = '/'
   private val LOG: Logger = Logger.getInstance(this.getClass)
+  private val MAX_SANITIZED_URIS = 4096
+  private val fileToUri: ConcurrentMap[VirtualFile, String] = ContainerUtil.createConcurrentWeakMap[VirtualFile, String]()
+  private val uriToFile: ConcurrentMap[String, VirtualFile] = ContainerUtil.createConcurrentWeakValueMap[String, VirtualFile]()
+  private val sanitized = new util.LinkedHashMap[String, String](256, 0.75f, true) {
+    override def removeEldestEntry(eldest: util.Map.Entry[String, String]): Boolean = size() > MAX_SANITIZED_URIS
+  }
 
   def extFromPsiFile(psiFile: PsiFile): String = {
     psiFile.getVirtualFile.getExtension
@@ -41,7 +52,7 @@ object FileUtils {
   }
 
   def virtualFileFromURI(uri: String): VirtualFile = {
-    LocalFileSystem.getInstance().findFileByIoFile(new File(new URI(sanitizeURI(uri))))
+    URIToVFS(uri)
   }
 
   /**
@@ -71,19 +82,30 @@ object FileUtils {
     * @return The URI
     */
   def editorToURIString(editor: Editor): String = {
-    sanitizeURI(VFSToURI(FileDocumentManager.getInstance().getFile(editor.getDocument)))
+    VFSToURI(FileDocumentManager.getInstance().getFile(editor.getDocument))
   }
 
   /**
     * Returns the URI string corresponding to a VirtualFileSystem file
+    * The uri is computed once per file, until the file is renamed, moved or deleted
     *
     * @param file The file
     * @return the URI
     */
   def VFSToURI(file: VirtualFile): String = {
+    if (file == null) null else {
+      val cached = fileToUri.get(file)
+      if (cached != null) cached else {
+        val uri = computeURI(file)
+        if (uri != null && file.isValid) fileToUri.put(file, uri)
+        uri
+      }
+    }
+  }
+
+  private def computeURI(file: VirtualFile): String = {
     try {
-      val uri = sanitizeURI(new URL(file.getUrl.replace(" ", SPACE_ENCODED)).toURI.toString)
-      uri
+      sanitizeURI(new URL(file.getUrl.replace(" ", SPACE_ENCODED)).toURI.toString)
     } catch {
       case e: Exception =>
         LOG.warn(e)
@@ -91,13 +113,69 @@ object FileUtils {
     }
   }
 
+  /**
+    * Removes the cached uri of a file
+    * Must be called when a file is deleted, and before and after it is renamed or moved ; before the change, the uris
+    * cached under a directory are removed too (withChildren), as they change with it
+    * The cached files of the uris don't need to be removed, as they are checked against their current uri when used
+    *
+    * @param file         The file
+    * @param withChildren Whether to remove the uris cached under the current uri of the file, if it is a directory
+    */
+  def invalidate(file: VirtualFile, withChildren: Boolean = false): Unit = {
+    if (file != null) {
+      val cached = fileToUri.remove(file)
+      if (cached != null) uriToFile.remove(cached, file)
+      if (withChildren && file.isDirectory && !fileToUri.isEmpty) {
+        val uri = if (cached != null) cached else computeURI(file)
+        if (uri != null) {
+          val prefix = if (uri.last == URI_PATH_SEP) uri else uri + URI_PATH_SEP
+          val entries = fileToUri.entrySet().iterator()
+          while (entries.hasNext) {
+            val entry = entries.next()
+            if (entry.getKey != null && entry.getValue.startsWith(prefix)) fileToUri.remove(entry.getKey, entry.getValue)
+          }
+        }
+      }
+    }
+  }
+
   /**
     * Fixes common problems in uri, mainly related to Windows
+    * An uri which is already sanitized is returned as is, and the results are cached, so that the same uri is
+    * always the same instance
     *
     * @param uri The uri to sanitize
     * @return The sanitized uri
     */
   def sanitizeURI(uri: String): String = {
+    if (uri == null) null
+    else if (os == OS.UNIX && isSanitized(uri)) uri
+    else {
+      val cached = sanitized.synchronized(sanitized.get(uri))
+      if (cached != null) cached else {
+        val res = doSanitizeURI(uri)
+        sanitized.synchronized {
+          val existing = sanitized.get(res)
+          val canonical = if (existing != null) existing else res
+          sanitized.put(uri, canonical)
+          sanitized.put(canonical, canonical)
+          canonical
+        }
+      }
+    }
+  }
+
+  /**
+    * @param uri The uri
+    * @return Whether the uri is already sanitized (on Unix)
+    */
+  private def isSanitized(uri: String): Boolean = {
+    val length = URI_VALID_FILE_BEGIN.length
+    uri.startsWith(URI_VALID_FILE_BEGIN) && (uri.length == length || uri.charAt(length) != URI_PATH_SEP) && uri.indexOf(' ') < 0
+  }
+
+  private def doSanitizeURI(uri: String): String = {
     if (uri != null) {
       val reconstructed: StringBuilder = StringBuilder.newBuilder
       var uriCp = new String(uri).replace(" ", SPACE_ENCODED) //Don't trust servers
@@ -130,13 +208,21 @@ object FileUtils {
 
   /**
     * Transforms an URI string into a VFS file
+    * The file is only looked up in the file system if it is not cached or if its uri changed
     *
     * @param uri The uri
     * @return The virtual file
     */
   def URIToVFS(uri: String): VirtualFile = {
-    val res = LocalFileSystem.getInstance().findFileByIoFile(new File(new URI(sanitizeURI(uri))))
-    res
+    val sanitizedUri = sanitizeURI(uri)
+    if (sanitizedUri == null) null else {
+      val cached = uriToFile.get(sanitizedUri)
+      if (cached != null && cached.isValid && VFSToURI(cached) == sanitizedUri) cached else {
+        val res = LocalFileSystem.getInstance().findFileByIoFile(new File(new URI(sanitizedUri)))
+        if (res != null) uriToFile.put(sanitizedUri, res) else if (cached != null) uriToFile.remove(sanitizedUri, cached)
+        res
+      }
+    }
   }
 
   /**
@@ -172,7 +258,7 @@ object FileUtils {
   }
 
   def documentToUri(document: Document): String = {
-    sanitizeURI(VFSToURI(FileDocumentManager.getInstance().getFile(document)))
+    VFSToURI(FileDocumentManager.getInstance().getFile(document))
   }
 
   /**
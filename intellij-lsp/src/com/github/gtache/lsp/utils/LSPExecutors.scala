@@ -0,0 +1,126 @@
+package com.github.gtache.lsp.utils
+
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.diagnostic.Logger
+
+import scala.collection.concurrent.TrieMap
+
+/**
+  * The executors running the LSP work, so that it doesn't compete with the platform work on the application pool
+  * Each server has its own bounded executor for the (mostly blocking) requests, a shared one is used for the work which
+  * isn't tied to a server, a CPU pool is used for conversions and a single scheduler triggers the delayed tasks
+  */
+object LSPExecutors {
+
+  private val LOG: Logger = Logger.getInstance(LSPExecutors.getClass)
+  private val MAX_SERVER_THREADS = 8
+  private val MAX_SHARED_THREADS = 8
+  private val MAX_QUEUED_TASKS = 1024
+  private val KEEP_ALIVE = 30 //Time after which an idle thread is stopped, in s
+  private val METRICS_PERIOD = 60000 //Period at which the metrics are logged (in debug), in ms
+  private val executors: TrieMap[String, ThreadPoolExecutor] = TrieMap()
+
+  /**
+    * The executor for the work which isn't tied to a server
+    */
+  val shared: ThreadPoolExecutor = newExecutor("LSP shared", MAX_SHARED_THREADS)
+
+  /**
+    * The executor for CPU-bound work (conversions, parsing)
+    */
+  val cpu: ThreadPoolExecutor = newExecutor("LSP CPU", math.max(2, Runtime.getRuntime.availableProcessors() - 1), unbounded = true)
+
+  /**
+    * The scheduler for the delayed tasks (e.g. hover), which must hand the actual work off to another executor
+    */
+  val scheduler: ScheduledThreadPoolExecutor = {
+    val executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("LSP scheduler"))
+    executor.setRemoveOnCancelPolicy(true)
+    executors.put("LSP scheduler", executor)
+    executor
+  }
+
+  //A periodic task which throws is never run again, hence the catch
+  private val metricsTask: ScheduledFuture[_] = scheduler.scheduleWithFixedDelay(() => {
+    try {
+      if (LOG.isDebugEnabled) LOG.debug(metrics)
+    } catch {
+      case e: Exception => LOG.warn(e)
+    }
+  }, METRICS_PERIOD, METRICS_PERIOD, TimeUnit.MILLISECONDS)
+
+  /**
+    * Creates the executor of a server
+    *
+    * @param name The name of the server (used for the threads and the metrics)
+    * @return The executor
+    */
+  def newServerExecutor(name: String): ThreadPoolExecutor = {
+    newExecutor(name, MAX_SERVER_THREADS)
+  }
+
+  /**
+    * Stops an executor, letting its queued tasks finish
+    *
+    * @param executor The executor
+    */
+  def shutdown(executor: ThreadPoolExecutor): Unit = {
+    executors.find(e => e._2 eq executor).foreach(e => executors.remove(e._1, e._2))
+    executor.shutdown()
+  }
+
+  /**
+    * @return The state of every executor (active threads, pool size, queued and completed tasks)
+    */
+  def metrics: String = {
+    executors.toList.sortBy(e => e._1).map(e => {
+      val executor = e._2
+      e._1 + " : active " + executor.getActiveCount + "/" + executor.getPoolSize + ", queued " + executor.getQueue.size() +
+        ", completed " + executor.getCompletedTaskCount + ", largest pool " + executor.getLargestPoolSize
+    }).mkString("LSP executors :\n", "\n", "")
+  }
+
+  private def newExecutor(name: String, threads: Int, unbounded: Boolean = false): ThreadPoolExecutor = {
+    val queue = if (unbounded) new LinkedBlockingQueue[Runnable]() else new LinkedBlockingQueue[Runnable](MAX_QUEUED_TASKS)
+    val executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, queue, new NamedThreadFactory(name), fallback(name))
+    executor.allowCoreThreadTimeOut(true)
+    var key = name
+    var i = 1
+    while (executors.putIfAbsent(key, executor).isDefined) {
+      i += 1
+      key = name + " #" + i
+    }
+    executor
+  }
+
+  /**
+    * Runs the rejected tasks on the application pool rather than blocking the caller (which may be the EDT)
+    */
+  private def fallback(name: String): RejectedExecutionHandler = (r: Runnable, executor: ThreadPoolExecutor) => {
+    if (executor.isShutdown) {
+      LOG.debug("Task submitted to stopped executor " + name)
+    } else {
+      LOG.warn("Executor " + name + " is saturated (" + executor.getQueue.size() + " queued tasks), running on the application pool")
+      ApplicationManager.getApplication.executeOnPooledThread(r)
+    }
+  }
+
+  /**
+    * Creates daemon threads named after their executor
+    *
+    * @param name The name of the executor
+    */
+  private class NamedThreadFactory(name: String) extends ThreadFactory {
+    private val count = new AtomicInteger(0)
+
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, name + "-" + count.incrementAndGet())
+      thread.setDaemon(true)
+      thread
+    }
+  }
+
+}
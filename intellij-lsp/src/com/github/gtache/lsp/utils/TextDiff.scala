@@ -0,0 +1,104 @@
+package com.github.gtache.lsp.utils
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.diff.{Diff, FilesTooBigForDiffException}
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Reduces the edits replacing large parts of a document (e.g. a formatter returning the whole formatted text) to
+  * the lines and characters which actually change
+  */
+object TextDiff {
+
+  private val LOG: Logger = Logger.getInstance(TextDiff.getClass)
+  private val MIN_DIFFED_LENGTH = 1000 //Edits replacing less characters are applied as is
+
+  /**
+    * Computes the minimal replacements equivalent to replacing a range of a text
+    *
+    * @param text    The current text
+    * @param start   The start offset of the replaced range
+    * @param end     The end offset of the replaced range
+    * @param newText The new text of the range
+    * @return The (start, end, text) replacements, sorted by decreasing offset so that they can be applied in order
+    */
+  def minimize(text: CharSequence, start: Int, end: Int, newText: String): Seq[(Int, Int, String)] = {
+    if (end - start < MIN_DIFFED_LENGTH) Seq((start, end, newText)) else {
+      val oldText = text.subSequence(start, end).toString
+      val oldLines = splitLines(oldText)
+      val newLines = splitLines(newText)
+      try {
+        val oldStarts = lineStarts(oldLines)
+        val newStarts = lineStarts(newLines)
+        val replacements = ArrayBuffer[(Int, Int, String)]()
+        var change = Diff.buildChanges(oldLines.asInstanceOf[Array[AnyRef]], newLines.asInstanceOf[Array[AnyRef]])
+        while (change != null) {
+          trim(oldText, oldStarts(change.line0), oldStarts(change.line0 + change.deleted),
+            newText, newStarts(change.line1), newStarts(change.line1 + change.inserted))
+            .foreach(r => replacements += ((start + r._1, start + r._2, r._3)))
+          change = change.link
+        }
+        replacements.reverse
+      } catch {
+        case e: FilesTooBigForDiffException =>
+          LOG.warn(e)
+          Seq((start, end, newText))
+      }
+    }
+  }
+
+  /**
+    * Removes the common prefix and suffix of a replaced block
+    *
+    * @param oldText The old text
+    * @param oldFrom The start of the block in the old text
+    * @param oldTo   The end of the block in the old text
+    * @param newText The new text
+    * @param newFrom The start of the block in the new text
+    * @param newTo   The end of the block in the new text
+    * @return The (start, end, text) replacement in the old text, or None if the block doesn't change
+    */
+  private[utils] def trim(oldText: String, oldFrom: Int, oldTo: Int, newText: String, newFrom: Int, newTo: Int): Option[(Int, Int, String)] = {
+    var prefix = 0
+    val maxPrefix = math.min(oldTo - oldFrom, newTo - newFrom)
+    while (prefix < maxPrefix && oldText.charAt(oldFrom + prefix) == newText.charAt(newFrom + prefix)) prefix += 1
+    var suffix = 0
+    val maxSuffix = maxPrefix - prefix
+    while (suffix < maxSuffix && oldText.charAt(oldTo - 1 - suffix) == newText.charAt(newTo - 1 - suffix)) suffix += 1
+    val (from, to) = (oldFrom + prefix, oldTo - suffix)
+    val replacement = newText.substring(newFrom + prefix, newTo - suffix)
+    if (from == to && replacement.isEmpty) None else Some((from, to, replacement))
+  }
+
+  /**
+    * @param text A text
+    * @return The lines of the text, including their line separator
+    */
+  private def splitLines(text: String): Array[String] = {
+    val lines = ArrayBuffer[String]()
+    var lineStart = 0
+    var i = text.indexOf('\n')
+    while (i >= 0) {
+      lines += text.substring(lineStart, i + 1)
+      lineStart = i + 1
+      i = text.indexOf('\n', lineStart)
+    }
+    if (lineStart < text.length) lines += text.substring(lineStart)
+    lines.toArray
+  }
+
+  /**
+    * @param lines The lines of a text
+    * @return The offset of the start of each line, followed by the length of the text
+    */
+  private def lineStarts(lines: Array[String]): Array[Int] = {
+    val starts = new Array[Int](lines.length + 1)
+    var i = 0
+    while (i < lines.length) {
+      starts(i + 1) = starts(i) + lines(i).length
+      i += 1
+    }
+    starts
+  }
+}
@@ -0,0 +1,51 @@
+package com.github.gtache.lsp.client.languageserver
+
+import java.io.File
+
+import org.eclipse.lsp4j.{DidChangeWatchedFilesRegistrationOptions, FileChangeType, FileSystemWatcher, WatchKind}
+import org.junit.Assert._
+import org.junit.Test
+
+class FileWatchersTest {
+
+  @Test
+  def approximateExtensions(): Unit = {
+    assertEquals(Some((Set("ts"), Set())), FileWatchers.approximate("**/*.ts"))
+    assertEquals(Some((Set("ts", "js"), Set())), FileWatchers.approximate("**/*.{ts,js}"))
+    //Only the last extension is kept, the files are filtered by their extension
+    assertEquals(Some((Set("ts"), Set())), FileWatchers.approximate("src/**/*.d.ts"))
+    assertEquals(Some((Set("ts", "js"), Set())), FileWatchers.approximate("**/*.{d.ts,js}"))
+  }
+
+  @Test
+  def approximateNames(): Unit = {
+    assertEquals(Some((Set(), Set("package.json"))), FileWatchers.approximate("**/package.json"))
+    assertEquals(Some((Set(), Set("build.sbt"))), FileWatchers.approximate("build.sbt"))
+  }
+
+  @Test
+  def approximateAnyFile(): Unit = {
+    assertEquals(None, FileWatchers.approximate("**/*"))
+    assertEquals(None, FileWatchers.approximate("src/**"))
+    assertEquals(None, FileWatchers.approximate("**/test_*.py"))
+    assertEquals(None, FileWatchers.approximate("**/*.[jt]s"))
+    assertEquals(None, FileWatchers.approximate("**/*.{ts,j?}"))
+    assertEquals(None, FileWatchers.approximate(""))
+  }
+
+  @Test
+  def matchesKindsAndRelativePaths(): Unit = {
+    import scala.collection.JavaConverters._
+    val options = new DidChangeWatchedFilesRegistrationOptions(Seq(
+      new FileSystemWatcher("src/*.ts", WatchKind.Create),
+      new FileSystemWatcher("**/*.json")).asJava)
+    val watchers = FileWatchers.compile(options)
+    val root = new File("project").getAbsoluteFile
+    val ts = new File(root, "src/a.ts").toURI.toString
+    val json = new File(root, "conf/b.json").toURI.toString
+    assertTrue(FileWatchers.matches(watchers, ts, root.getPath, FileChangeType.Created))
+    assertFalse(FileWatchers.matches(watchers, ts, root.getPath, FileChangeType.Changed))
+    assertFalse(FileWatchers.matches(watchers, ts, null, FileChangeType.Created))
+    assertTrue(FileWatchers.matches(watchers, json, null, FileChangeType.Deleted))
+  }
+}
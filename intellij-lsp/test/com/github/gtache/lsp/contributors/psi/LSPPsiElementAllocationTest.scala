@@ -0,0 +1,49 @@
+package com.github.gtache.lsp.contributors.psi
+
+import java.lang.management.ManagementFactory
+
+import org.junit.Assert._
+import org.junit.Test
+
+/**
+  * Measures the memory allocated for each LSPPsiElement, as one is created for each reference and each diagnostic
+  */
+class LSPPsiElementAllocationTest {
+
+  private val COUNT = 100000
+  //An element only holds its name, offsets, file, user data map and lazy reference (with its initialization flag)
+  private val MAX_BYTES_PER_ELEMENT = 64
+
+  @Test
+  def allocationPerElement(): Unit = {
+    val threadBean = ManagementFactory.getThreadMXBean match {
+      case bean: com.sun.management.ThreadMXBean if bean.isThreadAllocatedMemorySupported => bean
+      case _ => null
+    }
+    if (threadBean != null) {
+      val elements = new Array[LSPPsiElement](COUNT)
+      val name = "reference"
+      create(elements, name) //Warmup, also initializes the shared key and updater
+      val threadId = Thread.currentThread().getId
+      val before = threadBean.getThreadAllocatedBytes(threadId)
+      create(elements, name)
+      val bytesPerElement = (threadBean.getThreadAllocatedBytes(threadId) - before) / COUNT
+      println("Allocated bytes per LSPPsiElement : " + bytesPerElement)
+      assertTrue("Allocated " + bytesPerElement + " bytes per element", bytesPerElement <= MAX_BYTES_PER_ELEMENT)
+    }
+  }
+
+  @Test
+  def referenceIsShared(): Unit = {
+    val element = LSPPsiElement("reference", 0, 9, null)
+    assertSame(element.getReference, element.getReference)
+  }
+
+  private def create(elements: Array[LSPPsiElement], name: String): Unit = {
+    var i = 0
+    while (i < COUNT) {
+      elements(i) = LSPPsiElement(name, i, i + name.length, null)
+      i += 1
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.github.gtache.lsp.editor
+
+import com.intellij.openapi.editor.DefaultLanguageHighlighterColors.KEYWORD
+import com.intellij.openapi.editor.colors.TextAttributesKey
+import com.intellij.openapi.editor.{Editor, EditorFactory}
+import com.intellij.testFramework.LightPlatformTestCase
+import org.junit.Assert._
+
+/**
+  * Tests the token store, which needs an editor for its highlighters
+  */
+class SemanticTokensStoreTest extends LightPlatformTestCase {
+
+  private val text = "0123456789\nabcdefghij\nABCDEFGHIJ\n"
+
+  /**
+    * Runs a test with a store filled with tokens on the first three lines
+    *
+    * @param test The test, given the editor and the store
+    */
+  private def withStore(test: (Editor, SemanticTokensStore) => Unit): Unit = {
+    val editor = EditorFactory.getInstance().createEditor(EditorFactory.getInstance().createDocument(text))
+    try {
+      val store = new SemanticTokensStore(editor, Array[TextAttributesKey](KEYWORD))
+      store.update(Seq((0, Array(0, 2, 0, 5, 3, 0)), (1, Array(2, 2, 0)), (2, Array(0, 4, 0))))
+      test(editor, store)
+    } finally {
+      EditorFactory.getInstance().releaseEditor(editor)
+    }
+  }
+
+  private def highlighterCount(editor: Editor): Int = editor.getMarkupModel.getAllHighlighters.length
+
+  def testUpdate(): Unit = withStore((editor, store) => {
+    assertEquals(Seq((0, 0, 2, 0), (0, 5, 3, 0), (1, 2, 2, 0), (2, 0, 4, 0)), store.toSeq)
+    assertEquals(4, highlighterCount(editor))
+    //Only the given lines are replaced, an empty line removing its tokens
+    store.update(Seq((1, Array()), (3, Array(1, 1, 0)), (0, Array(4, 1, 0))))
+    assertEquals(Seq((0, 4, 1, 0), (2, 0, 4, 0), (3, 1, 1, 0)), store.toSeq)
+    //The token of the empty last line can't be painted
+    assertEquals(2, highlighterCount(editor))
+  })
+
+  def testShiftInsertionInLine(): Unit = withStore((_, store) => {
+    //"xy" inserted at 0:3
+    store.shift(0, 3, 0, 3, 0, 2)
+    assertEquals(Seq((0, 0, 2, 0), (0, 7, 3, 0), (1, 2, 2, 0), (2, 0, 4, 0)), store.toSeq)
+  })
+
+  def testShiftLineBreak(): Unit = withStore((_, store) => {
+    //Line break inserted at 1:0
+    store.shift(1, 0, 1, 0, 1, 0)
+    assertEquals(Seq((0, 0, 2, 0), (0, 5, 3, 0), (2, 2, 2, 0), (3, 0, 4, 0)), store.toSeq)
+  })
+
+  def testShiftDeletionRemovesTouchedTokens(): Unit = withStore((editor, store) => {
+    //0:6 to 1:3 deleted, the rest of line 1 moving to column 6 of line 0
+    store.shift(0, 6, 1, 3, -1, 3)
+    assertEquals(Seq((0, 0, 2, 0), (1, 0, 4, 0)), store.toSeq)
+    assertEquals(2, highlighterCount(editor))
+  })
+
+  def testClear(): Unit = withStore((editor, store) => {
+    store.clear()
+    assertEquals(0, store.size)
+    assertEquals(0, highlighterCount(editor))
+  })
+}
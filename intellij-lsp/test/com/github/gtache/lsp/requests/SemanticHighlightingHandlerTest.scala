@@ -0,0 +1,50 @@
+package com.github.gtache.lsp.requests
+
+import java.nio.ByteBuffer
+import java.util.Base64
+
+import org.junit.Assert._
+import org.junit.Test
+
+class SemanticHighlightingHandlerTest {
+
+  /**
+    * Encodes tokens like a server
+    *
+    * @param tokens The (character, length, scope) tokens
+    * @return The base64 string
+    */
+  private def encode(tokens: (Long, Int, Int)*): String = {
+    val buffer = ByteBuffer.allocate(tokens.size * 8)
+    tokens.foreach(t => buffer.putInt(t._1.toInt).putShort(t._2.toShort).putShort(t._3.toShort))
+    Base64.getEncoder.encodeToString(buffer.array())
+  }
+
+  @Test
+  def emptyTokens(): Unit = {
+    assertArrayEquals(Array.emptyIntArray, SemanticHighlightingHandler.decode(null))
+    assertArrayEquals(Array.emptyIntArray, SemanticHighlightingHandler.decode(""))
+  }
+
+  @Test
+  def decodesTokens(): Unit = {
+    assertArrayEquals(Array(0, 3, 1, 10, 5, 2), SemanticHighlightingHandler.decode(encode((0, 3, 1), (10, 5, 2))))
+  }
+
+  @Test
+  def decodesUnsignedValues(): Unit = {
+    //Lengths and scopes are uint16, they must not become negative
+    assertArrayEquals(Array(70000, 65535, 40000), SemanticHighlightingHandler.decode(encode((70000, 65535, 40000))))
+  }
+
+  @Test
+  def ignoresIncompleteToken(): Unit = {
+    val bytes = Base64.getDecoder.decode(encode((4, 2, 0))) ++ Array[Byte](1, 2, 3)
+    assertArrayEquals(Array(4, 2, 0), SemanticHighlightingHandler.decode(Base64.getEncoder.encodeToString(bytes)))
+  }
+
+  @Test
+  def invalidTokens(): Unit = {
+    assertArrayEquals(Array.emptyIntArray, SemanticHighlightingHandler.decode("not base64 !"))
+  }
+}
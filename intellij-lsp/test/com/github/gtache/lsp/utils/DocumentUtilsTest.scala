@@ -0,0 +1,55 @@
+package com.github.gtache.lsp.utils
+
+import com.intellij.openapi.command.WriteCommandAction
+import com.intellij.openapi.editor.{Document, EditorFactory}
+import com.intellij.testFramework.LightPlatformTestCase
+import org.eclipse.lsp4j.{Position, Range, TextEdit}
+import org.junit.Assert._
+
+/**
+  * Tests the conversion of edits to offsets, which needs a running application for the read actions
+  */
+class DocumentUtilsTest extends LightPlatformTestCase {
+
+  private val text = "line0\nline1\nlast"
+
+  private def edit(startLine: Int, startChar: Int, endLine: Int, endChar: Int, newText: String): TextEdit = {
+    new TextEdit(new Range(new Position(startLine, startChar), new Position(endLine, endChar)), newText)
+  }
+
+  private def document(): Document = EditorFactory.getInstance().createDocument(text)
+
+  private def apply(document: Document, offsets: Seq[(Int, Int, String)]): String = {
+    WriteCommandAction.runWriteCommandAction(LightPlatformTestCase.getProject, new Runnable {
+      override def run(): Unit = DocumentUtils.applyOffsets(document, offsets)
+    })
+    document.getText
+  }
+
+  def testOffsetsAreSortedFromTheEnd(): Unit = {
+    val offsets = DocumentUtils.toOffsets(document(), Seq(edit(0, 1, 0, 3, "a"), edit(1, 2, 1, 4, "b"), edit(2, 0, 2, 0, "c")))
+    assertEquals(Seq((12, 12, "c"), (8, 10, "b"), (1, 3, "a")), offsets)
+  }
+
+  def testLastLineWithoutSeparator(): Unit = {
+    val doc = document()
+    assertEquals(Seq((12, 16, "end")), DocumentUtils.toOffsets(doc, Seq(edit(2, 0, 2, 4, "end"))))
+    //Positions after the end of the line are clamped to it
+    assertEquals(Seq((16, 16, "!")), DocumentUtils.toOffsets(doc, Seq(edit(2, 10, 2, 12, "!"))))
+  }
+
+  def testNullTextIsADeletion(): Unit = {
+    assertEquals(Seq((0, 4, "")), DocumentUtils.toOffsets(document(), Seq(edit(0, 0, 0, 4, null))))
+  }
+
+  def testInsertionsKeepTheirOrder(): Unit = {
+    val doc = document()
+    val offsets = DocumentUtils.toOffsets(doc, Seq(edit(1, 0, 1, 0, "a"), edit(1, 0, 1, 0, "b"), edit(0, 0, 0, 5, "first")))
+    assertEquals("first\nabline1\nlast", apply(doc, offsets))
+  }
+
+  def testOverlappingEdits(): Unit = {
+    assertNull(DocumentUtils.toOffsets(document(), Seq(edit(0, 0, 0, 4, "a"), edit(0, 2, 1, 1, "b"))))
+    assertNotNull(DocumentUtils.toOffsets(document(), Seq(edit(0, 0, 0, 2, "a"), edit(0, 2, 0, 4, "b"))))
+  }
+}
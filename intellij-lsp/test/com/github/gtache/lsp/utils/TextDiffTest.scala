@@ -0,0 +1,75 @@
+package com.github.gtache.lsp.utils
+
+import org.junit.Assert._
+import org.junit.Test
+
+class TextDiffTest {
+
+  //Long enough to be diffed
+  private val lines: Seq[String] = (0 until 100).map(i => "val line" + i + " = " + i + "\n")
+  private val text: String = lines.mkString
+
+  /**
+    * Applies replacements in the given order
+    *
+    * @param text         The text
+    * @param replacements The (start, end, text) replacements
+    * @return The resulting text
+    */
+  private def applyAll(text: String, replacements: Seq[(Int, Int, String)]): String = {
+    val builder = new StringBuilder(text)
+    replacements.foreach(r => builder.replace(r._1, r._2, r._3))
+    builder.toString
+  }
+
+  @Test
+  def shortRangeIsKept(): Unit = {
+    assertEquals(Seq((2, 5, "abc")), TextDiff.minimize("0123456789", 2, 5, "abc"))
+  }
+
+  @Test
+  def identicalTextIsEmpty(): Unit = {
+    assertEquals(Seq(), TextDiff.minimize(text, 0, text.length, text))
+  }
+
+  @Test
+  def singleChangeIsTrimmed(): Unit = {
+    val newText = text.replace("val line50 = 50", "val line50 = 500")
+    val expectedOffset = lines.take(50).map(l => l.length).sum + "val line50 = 50".length
+    assertEquals(Seq((expectedOffset, expectedOffset, "0")), TextDiff.minimize(text, 0, text.length, newText))
+  }
+
+  @Test
+  def offsetsAreRelativeToTheText(): Unit = {
+    val prefix = "header\n"
+    val fullText = prefix + text + "footer\n"
+    val newText = text.replace("line10 ", "line_10 ")
+    val expectedOffset = prefix.length + lines.take(10).map(l => l.length).sum + "val line".length
+    assertEquals(Seq((expectedOffset, expectedOffset, "_")), TextDiff.minimize(fullText, prefix.length, prefix.length + text.length, newText))
+  }
+
+  @Test
+  def lastLineWithoutSeparator(): Unit = {
+    val oldText = text + "last"
+    val newText = text + "last line"
+    assertEquals(Seq((oldText.length, oldText.length, " line")), TextDiff.minimize(oldText, 0, oldText.length, newText))
+    assertEquals(Seq((text.length - 1, oldText.length, "")), TextDiff.minimize(oldText, 0, oldText.length, text.dropRight(1)))
+  }
+
+  @Test
+  def multipleChangesAreSortedFromTheEnd(): Unit = {
+    val newText = lines.patch(80, Nil, 2).patch(40, Seq("inserted\n"), 0).patch(5, Seq("changed\n"), 1).mkString
+    val replacements = TextDiff.minimize(text, 0, text.length, newText)
+    assertEquals(3, replacements.size)
+    assertEquals(replacements.sortBy(r => -r._1), replacements)
+    assertEquals(newText, applyAll(text, replacements))
+  }
+
+  @Test
+  def trimRemovesCommonPrefixAndSuffix(): Unit = {
+    assertEquals(Some((2, 3, "X")), TextDiff.trim("abcdef", 0, 6, "abXdef", 0, 6))
+    assertEquals(Some((4, 5, "")), TextDiff.trim("--abcd--", 2, 6, "abd", 0, 3))
+    assertEquals(Some((2, 2, "a")), TextDiff.trim("aa", 0, 2, "aaa", 0, 3))
+    assertEquals(None, TextDiff.trim("abc", 0, 3, "xabcx", 1, 4))
+  }
+}